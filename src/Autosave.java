@@ -0,0 +1,47 @@
+package src;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/* Saves the server's MUDs and players in the background, on a thread of
+   its own, so that a slow disk never holds up commands or view refreshes.
+   Saves are incremental: MUDs and players that haven't changed since they
+   were last saved are skipped (see Saver.saveState() and PlayerStore). */
+class Autosave
+{
+  private final ScheduledExecutorService timer;
+
+  public Autosave()
+  {
+    timer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "mud-autosave");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /* Runs a save repeatedly, with the given interval (in milliseconds)
+     between the end of one run and the start of the next. */
+  public void every(long interval, Runnable save)
+  {
+    timer.scheduleWithFixedDelay(() -> run(save), interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  public void shutdown()
+  {
+    timer.shutdown();
+  }
+
+  /* Keeps the schedule going if a save fails. */
+  private static void run(Runnable save)
+  {
+    try {
+      save.run();
+    }
+    catch(RuntimeException e) {
+      System.err.println(ColourPrinter.red("Exception in Autosave:"));
+      System.err.println(ColourPrinter.red(e.toString()));
+    }
+  }
+}
@@ -0,0 +1,50 @@
+package src;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* A place players can chat in: one location of a MUD, a whole MUD, or the
+   whole server. Each channel has its own log of recent messages, which
+   its subscribers read with their next view (see PlayerSession), and its
+   own set of subscribers, so that sending to a channel only costs as
+   much as the number of players in it. */
+class ChatChannel
+{
+  public static enum Scope {
+    ROOM, MUD, SERVER
+  }
+
+  public final Scope scope;
+  private final ChatLog log = new ChatLog();
+  private final Set<PlayerSession> subscribers = ConcurrentHashMap.newKeySet();
+
+  public ChatChannel(Scope _scope)
+  {
+    scope = _scope;
+  }
+
+  /* Adds a message to the channel's log, where every subscriber can read it. */
+  public void post(PlayerMessage msg)
+  {
+    log.add(msg);
+  }
+
+  /* The players subscribed to the channel, e.g. those in a location. */
+  public Set<PlayerSession> subscribers()
+  {
+    return Collections.unmodifiableSet(subscribers);
+  }
+
+  /* Only called by PlayerSession.subscribe(), which also starts reading the log. */
+  ChatLog.Reader subscribe(PlayerSession session)
+  {
+    subscribers.add(session);
+    return log.reader();
+  }
+
+  void unsubscribe(PlayerSession session)
+  {
+    subscribers.remove(session);
+  }
+}
@@ -0,0 +1,111 @@
+package src;
+
+import java.util.Arrays;
+
+/* A fixed number of the most recent chat messages, e.g. those shouted in
+   one room or sent to one player. Messages are kept in a ring, so adding
+   one never allocates; once the ring is full, each new message replaces
+   the oldest. The ring is only made when the first message is added, so
+   logs nobody has written to (e.g. of quiet rooms) cost very little.
+
+   Every message gets the next sequence number. Each Reader keeps the
+   number of the last message it has seen (a cursor), and only reads the
+   ones after it, so nothing is sent twice. A reader that falls more than
+   a ring's length behind misses the oldest messages. Messages never
+   change, so one message can be kept in several logs. */
+class ChatLog
+{
+  public static final int DEFAULT_DEPTH = 5; // Messages kept, unless set with -Dmud.chatHistory.
+  public static final int DEPTH = Math.max(Integer.getInteger("mud.chatHistory", DEFAULT_DEPTH), 1);
+  public static final PlayerMessage[] NONE = new PlayerMessage[0];
+
+  private final int depth;
+  private PlayerMessage[] ring;       // Guarded by this. Message n is at ring[n % depth].
+  private long last = 0;              // Guarded by this. Sequence number of the newest message.
+
+  public ChatLog()
+  {
+    this(DEPTH);
+  }
+
+  public ChatLog(int _depth)
+  {
+    depth = Math.max(_depth, 1);
+  }
+
+  /* One reader's place in a log. */
+  public final class Reader
+  {
+    private long seen; // Guarded by the log.
+
+    private Reader(long cursor)
+    {
+      seen = cursor;
+    }
+
+    /* Returns the messages added since the last read (or since the
+       reader was made), oldest first. */
+    public PlayerMessage[] read()
+    {
+      synchronized(ChatLog.this) {
+        PlayerMessage[] msgs = since(seen);
+        seen = last;
+        return msgs;
+      }
+    }
+  }
+
+  /* Returns a reader that will only see messages added from now on. */
+  public synchronized Reader reader()
+  {
+    return new Reader(last);
+  }
+
+  /* Adds a message, and returns its sequence number. */
+  public synchronized long add(PlayerMessage msg)
+  {
+    if(ring == null)
+      ring = new PlayerMessage[depth];
+    last++;
+    ring[(int) (last % depth)] = msg;
+    return last;
+  }
+
+  /* Returns the messages after the given cursor that are still held,
+     oldest first. */
+  public synchronized PlayerMessage[] since(long cursor)
+  {
+    long first = Math.max(cursor, last - depth) + 1;
+    if(first > last)
+      return NONE;
+    PlayerMessage[] msgs = new PlayerMessage[(int) (last - first + 1)];
+    for(int i = 0; i < msgs.length; i++)
+      msgs[i] = ring[(int) ((first + i) % depth)];
+    return msgs;
+  }
+
+  /* Copies the messages after the given cursor that are still held into
+     an array with room for as many as the log holds, oldest first, and
+     returns how many there are. Unlike since(), this allocates nothing. */
+  public synchronized int since(long cursor, PlayerMessage[] into)
+  {
+    long first = Math.max(cursor, last - depth) + 1;
+    int n = (int) Math.max(last - first + 1, 0);
+    for(int i = 0; i < n; i++)
+      into[i] = ring[(int) ((first + i) % depth)];
+    return n;
+  }
+
+  /* Merges two lists of messages into one, oldest first. */
+  public static PlayerMessage[] merge(PlayerMessage[] a, PlayerMessage[] b)
+  {
+    if(a.length == 0)
+      return b;
+    if(b.length == 0)
+      return a;
+    PlayerMessage[] msgs = Arrays.copyOf(a, a.length + b.length);
+    System.arraycopy(b, 0, msgs, a.length, b.length);
+    Arrays.sort(msgs, (x, y) -> Long.compare(x.timestamp, y.timestamp)); // Stable, so ties keep their order.
+    return msgs;
+  }
+}
@@ -21,18 +21,16 @@ public class Client
      Meant to be run as a thread on shutdown. When the client gets
      shut down (e.g. with CTRL+C or "quit" command) this class gets executed,
      and handles a clean exit by informing the server about the player quitting,
-     so the server can act accordingly. Also saves the player's current state.
+     so the server can act accordingly (including saving the player's state).
   */
   private static class DisconnectHandler
   implements Runnable
   {
     private PlayerInterface playerstub;
-    private Player player;
     private MUDServerInterface mud;
 
-    private DisconnectHandler(PlayerInterface playerstub, Player player, MUDServerInterface md)
+    private DisconnectHandler(PlayerInterface playerstub, MUDServerInterface md)
     {
-      this.player = player;
       this.playerstub = playerstub;
       this.mud = md;
     }
@@ -41,7 +39,6 @@ public class Client
     {
       try {
         mud.playerDisconnect(playerstub); // Notify server of player disconnect.
-        Saver.saveState(player); // Save player state.
       }
       catch(RemoteException e) {
         System.err.println(ColourPrinter.red("Error in DisconnectHandler thread:"));
@@ -73,16 +70,28 @@ public class Client
     catch(IOException e) {
       System.err.println(ColourPrinter.red("Error in gameLoop():"));
       System.err.println(ColourPrinter.red(e.getMessage()));
+      System.exit(1); // e.g. lost connection to the server.
     }
   }
 
   /* Fetches a reference to the MUD Server and sets up a thread as a Shutdownhook.
      Registers the player with the server then starts the main game loop with a call to gameLoop().
+
+     With -Dmud.transport=socket, the client instead opens a single
+     connection to the server's socket port (see SocketServer), and the
+     server sends its updates back over that connection. Nothing is
+     exported, so the client needs no callback port and no RMI threads.
   */
   public static void main(String args[])
   {
+    ColourPrinter.plainOutput();
+    if("socket".equals(System.getProperty("mud.transport"))) {
+      socketMain(args);
+      return;
+    }
     if (args.length < 3) {
-      System.err.println(ColourPrinter.red( "Usage:\njava Client <registryhost> <registryport> <callbackport>" ) );
+      System.err.println(ColourPrinter.red( "Usage:\njava Client <registryhost> <registryport> <callbackport>\n"
+                                          + "java -Dmud.transport=socket Client <serverhost> <socketport>" ) );
       return;
     }
 
@@ -93,18 +102,9 @@ public class Client
       System.setProperty( "java.security.policy", "mud.policy" ) ;
       System.setSecurityManager( new RMISecurityManager() ) ;
 
-      // Either load existing player, or create new one.
+      // The player's saved state (if any) is loaded by the server when they join.
       String username = Player.promptUsername();
-      Player player = Saver.loadState(new Player(username));
-      if(player != null) {
-        System.out.println(ColourPrinter.blue("Save file found. Loading game..."));
-        Thread.sleep(2000);
-      }
-      else {
-        System.out.println(ColourPrinter.blue("No save file found. Starting new game..."));
-        Thread.sleep(2000);
-        player = new Player(username);
-      }
+      Player player = new Player(username);
 
       // Obtain reference to MUDServer and register player with RMI.
       System.out.println(ColourPrinter.blue("Connecting to server..."));
@@ -113,7 +113,7 @@ public class Client
       MUDServerInterface mudserv = (MUDServerInterface)Naming.lookup( regURL );
 
       // Register user with server, start game loop and setup shutdown thread.
-      Thread hook = new Thread(new DisconnectHandler(playerstub, player, mudserv));
+      Thread hook = new Thread(new DisconnectHandler(playerstub, mudserv));
       Runtime.getRuntime().addShutdownHook(hook);
       if(mudserv.joinServer(playerstub)) {
         gameLoop(player, playerstub, mudserv);
@@ -135,4 +135,42 @@ public class Client
       System.err.println(ColourPrinter.red(e.getMessage()));
     }
   }
+
+  /* Like main(), but connects over a socket rather than RMI. */
+  private static void socketMain(String args[])
+  {
+    if (args.length < 2) {
+      System.err.println(ColourPrinter.red( "Usage:\njava -Dmud.transport=socket Client <serverhost> <socketport>" ) );
+      return;
+    }
+
+    try {
+      String hostname = args[0];
+      int socketport = Integer.parseInt( args[1] ) ;
+
+      String username = Player.promptUsername();
+      Player player = new Player(username);
+
+      System.out.println(ColourPrinter.blue("Connecting to server..."));
+      ServerConnection mudserv = new ServerConnection(hostname, socketport, player);
+
+      Thread hook = new Thread(new DisconnectHandler(player, mudserv));
+      Runtime.getRuntime().addShutdownHook(hook);
+      if(mudserv.joinServer(player)) {
+        gameLoop(player, player, mudserv);
+        hook.join();
+      }
+      else {
+        System.out.println(ColourPrinter.red("Failed to connect to server. Press CTRL+C to quit."));
+      }
+    }
+    catch (IOException e) {
+      System.err.println(ColourPrinter.red( "Failed to connect." ));
+      System.err.println(ColourPrinter.red(e.getMessage()));
+    }
+    catch(InterruptedException e) {
+      System.err.println(ColourPrinter.red("Thread error:"));
+      System.err.println(ColourPrinter.red(e.getMessage()));
+    }
+  }
 }
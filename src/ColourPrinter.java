@@ -1,5 +1,28 @@
 package src;
 
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/* Colours text for the terminal, using ANSI escape sequences.
+
+   The colour methods wrap a string, for text that is made once, or sent
+   by the server to a client. Text that is drawn over and over (the
+   client's screen) is built in a StyledText instead, which encodes it
+   straight into a reusable byte buffer, and the parts of it that never
+   change (e.g. the prompt) are Spans, which are encoded once.
+
+   Colour is only wanted on a terminal. It is turned off with
+   -Dmud.colour=off, or when the output isn't a terminal (unless
+   -Dmud.colour=on); then StyledText leaves the escape sequences out, and
+   plainOutput() has System.out and System.err leave them out too, so
+   e.g. a log file is readable. */
 public final class ColourPrinter
 {
   public static final String ANSI_RESET = "\u001B[0m";
@@ -12,6 +35,10 @@ public final class ColourPrinter
   public static final String ANSI_CYAN = "\u001B[36m";
   public static final String ANSI_WHITE = "\u001B[37m";
 
+  public static final boolean ENABLED = enabled(System.getProperty("mud.colour", "auto"));
+
+  private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
   private ColourPrinter()
   {
   }
@@ -55,4 +82,299 @@ public final class ColourPrinter
   {
     return ANSI_WHITE + msg + ANSI_RESET;
   }
+
+  /* A constant piece of text in one colour, encoded once. */
+  public static Span span(String colour, String msg)
+  {
+    return new Span(colour + msg + ANSI_RESET);
+  }
+
+  /* Returns some text with its escape sequences taken out. */
+  public static String strip(String msg)
+  {
+    if(msg.indexOf('\u001B') < 0)
+      return msg;
+    StringBuilder plain = new StringBuilder(msg.length());
+    int escape = 0;
+    for(int i = 0; i < msg.length(); i++) {
+      char c = msg.charAt(i);
+      int was = escape;
+      escape = skip(escape, c);
+      if(was == 0 && escape == 0)
+        plain.append(c);
+    }
+    return plain.toString();
+  }
+
+  /* If colour is off, has System.out and System.err leave escape
+     sequences out of everything printed from now on. */
+  public static void plainOutput()
+  {
+    if(ENABLED)
+      return;
+    System.out.flush();
+    System.err.flush();
+    System.setOut(new PrintStream(new Plain(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out))), true));
+    System.setErr(new PrintStream(new Plain(new BufferedOutputStream(new FileOutputStream(FileDescriptor.err))), true));
+  }
+
+  /* Some text, possibly with escape sequences in it, encoded once with
+     them and once without. */
+  public static final class Span
+  {
+    public final String text;
+    private final byte[] coloured;
+    private final byte[] plain;
+
+    public Span(String _text)
+    {
+      text = _text;
+      coloured = text.getBytes(StandardCharsets.UTF_8);
+      plain = strip(text).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /* Writes the span, in colour if colour is on. */
+    public void writeTo(OutputStream out)
+    throws IOException
+    {
+      out.write(ENABLED ? coloured : plain);
+    }
+
+    public String toString()
+    {
+      return text;
+    }
+  }
+
+  /* Text being put together for the terminal, in a byte buffer that is
+     kept from one use to the next, so that once it has grown big enough,
+     building and writing text allocates nothing. Text is encoded as
+     UTF-8. If colour is off, escape sequences are left out, including any
+     in text appended (e.g. text coloured by the server). Not thread safe. */
+  public static final class StyledText implements Appendable
+  {
+    private final boolean colour;
+    private byte[] buf;
+    private int size = 0;
+    private int escape = 0; // How far into an escape sequence being left out.
+
+    public StyledText(int capacity)
+    {
+      this(capacity, ENABLED);
+    }
+
+    public StyledText(int capacity, boolean _colour)
+    {
+      colour = _colour;
+      buf = new byte[Math.max(capacity, 16)];
+    }
+
+    /* Empties the buffer, to start again. */
+    public StyledText reset()
+    {
+      size = 0;
+      escape = 0;
+      return this;
+    }
+
+    /* Starts text in one colour (e.g. ANSI_BLUE), up to end(). */
+    public StyledText start(String ansi)
+    {
+      return code(ansi);
+    }
+
+    public StyledText end()
+    {
+      return code(ANSI_RESET);
+    }
+
+    public StyledText append(Span span)
+    {
+      return put(colour ? span.coloured : span.plain);
+    }
+
+    public StyledText append(CharSequence text)
+    {
+      if(text == null)
+        text = "null";
+      return append(text, 0, text.length());
+    }
+
+    public StyledText append(CharSequence text, int from, int to)
+    {
+      if(text == null)
+        text = "null";
+      for(int i = from; i < to; i++) {
+        char c = text.charAt(i);
+        if(Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(text.charAt(i + 1))) {
+          int pair = Character.toCodePoint(c, text.charAt(++i));
+          if(colour || escape == 0)
+            putCodePoint(pair);
+        }
+        else
+          append(c);
+      }
+      return this;
+    }
+
+    public StyledText append(char c)
+    {
+      if(!colour) {
+        int was = escape;
+        escape = skip(escape, c);
+        if(was != 0 || escape != 0)
+          return this;
+      }
+      if(Character.isSurrogate(c))
+        return putByte('?'); // Half a pair.
+      return putCodePoint(c);
+    }
+
+    public StyledText append(long n)
+    {
+      if(n < 0)
+        putByte('-');
+      else
+        n = -n; // Work with negatives, which can hold Long.MIN_VALUE.
+      int digits = 1;
+      for(long m = n / 10; m != 0; m /= 10)
+        digits++;
+      ensure(digits);
+      for(int i = size + digits - 1; i >= size; i--) {
+        buf[i] = (byte) ('0' - n % 10);
+        n /= 10;
+      }
+      size += digits;
+      return this;
+    }
+
+    public StyledText newline()
+    {
+      return put(NEWLINE);
+    }
+
+    /* The number of bytes in the buffer. */
+    public int size()
+    {
+      return size;
+    }
+
+    /* Writes the contents of the buffer, in one write. */
+    public void writeTo(OutputStream out)
+    throws IOException
+    {
+      out.write(buf, 0, size);
+    }
+
+    public String toString()
+    {
+      return new String(buf, 0, size, StandardCharsets.UTF_8);
+    }
+
+    /* Appends an escape sequence, if colour is on. The sequences are all
+       ASCII, so they are copied straight in. */
+    private StyledText code(String code)
+    {
+      if(!colour)
+        return this;
+      ensure(code.length());
+      for(int i = 0; i < code.length(); i++)
+        buf[size++] = (byte) code.charAt(i);
+      return this;
+    }
+
+    private StyledText putCodePoint(int c)
+    {
+      if(c < 0x80)
+        return putByte(c);
+      ensure(4);
+      if(c < 0x800) {
+        buf[size++] = (byte) (0xC0 | (c >> 6));
+      }
+      else {
+        if(c < 0x10000) {
+          buf[size++] = (byte) (0xE0 | (c >> 12));
+        }
+        else {
+          buf[size++] = (byte) (0xF0 | (c >> 18));
+          buf[size++] = (byte) (0x80 | ((c >> 12) & 0x3F));
+        }
+        buf[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+      }
+      buf[size++] = (byte) (0x80 | (c & 0x3F));
+      return this;
+    }
+
+    private StyledText putByte(int b)
+    {
+      ensure(1);
+      buf[size++] = (byte) b;
+      return this;
+    }
+
+    private StyledText put(byte[] bytes)
+    {
+      ensure(bytes.length);
+      System.arraycopy(bytes, 0, buf, size, bytes.length);
+      size += bytes.length;
+      return this;
+    }
+
+    private void ensure(int n)
+    {
+      if(size + n > buf.length)
+        buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + n));
+    }
+  }
+
+  /* Leaves escape sequences out of whatever is written through it. */
+  private static final class Plain extends FilterOutputStream
+  {
+    private int escape = 0;
+
+    Plain(OutputStream out)
+    {
+      super(out);
+    }
+
+    public void write(int b)
+    throws IOException
+    {
+      int was = escape;
+      escape = skip(escape, (char) (b & 0xFF));
+      if(was == 0 && escape == 0)
+        out.write(b);
+    }
+
+    public void write(byte[] b, int off, int len)
+    throws IOException
+    {
+      for(int i = off; i < off + len; i++)
+        write(b[i]);
+    }
+  }
+
+  /* Steps through escape sequences, one character at a time, returning
+     where the next character is: 0 outside one, 1 just after the ESC, or
+     2 inside an "ESC [ ..." sequence. A character is part of a sequence
+     (and left out) unless it is outside one both before and after. */
+  private static int skip(int escape, char c)
+  {
+    if(escape == 0)
+      return (c == '\u001B') ? 1 : 0;
+    if(escape == 1)
+      return (c == '[') ? 2 : 0;
+    if(escape == 2)
+      return (c >= 0x40 && c <= 0x7E) ? 0 : 2;
+    return 0;
+  }
+
+  private static boolean enabled(String setting)
+  {
+    if(setting.equalsIgnoreCase("on") || setting.equalsIgnoreCase("true"))
+      return true;
+    if(setting.equalsIgnoreCase("off") || setting.equalsIgnoreCase("false"))
+      return false;
+    return System.console() != null;
+  }
 }
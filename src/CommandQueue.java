@@ -0,0 +1,98 @@
+package src;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/* Runs the commands for one MUD one at a time, in the order they were
+   submitted. Each MUD has its own queue, so game logic running on it never
+   races with other commands in the same MUD, while separate MUDs still run
+   in parallel. Queues share a pool of worker threads, and a queue only
+   holds a thread while it has commands waiting. */
+class CommandQueue implements Executor
+{
+  private static final ExecutorService WORKERS = Executors.newCachedThreadPool(r -> {
+    Thread t = new Thread(r, "mud-commands");
+    t.setDaemon(true);
+    return t;
+  });
+
+  private final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+  private boolean draining = false; // Guarded by queue.
+  private volatile Thread runner;   // The thread draining the queue, if any.
+
+  /* Queues a command without waiting for it to run. */
+  public void execute(Runnable command)
+  {
+    synchronized(queue) {
+      queue.add(command);
+      if(draining)
+        return;
+      draining = true;
+    }
+    WORKERS.execute(this::drain);
+  }
+
+  /* Queues a command and waits until it has run. */
+  public void invoke(Runnable command)
+  {
+    call(() -> {
+      command.run();
+      return null;
+    });
+  }
+
+  /* Queues a command and waits for its result. Runs it straight away if
+     called from a command already running on this queue. Any exception it
+     throws is rethrown here. */
+  public <T> T call(Supplier<T> command)
+  {
+    if(Thread.currentThread() == runner)
+      return command.get();
+    CompletableFuture<T> result = new CompletableFuture<>();
+    execute(() -> {
+      try {
+        result.complete(command.get());
+      }
+      catch(RuntimeException e) {
+        result.completeExceptionally(e);
+      }
+    });
+    try {
+      return result.join();
+    }
+    catch(CompletionException e) {
+      if(e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      throw e;
+    }
+  }
+
+  /* Runs queued commands in order until the queue is empty. */
+  private void drain()
+  {
+    runner = Thread.currentThread();
+    while(true) {
+      Runnable next;
+      synchronized(queue) {
+        next = queue.poll();
+        if(next == null) {
+          runner = null;
+          draining = false;
+          return;
+        }
+      }
+      try {
+        next.run();
+      }
+      catch(RuntimeException e) { // Keep going, so later commands aren't stuck.
+        System.err.println(ColourPrinter.red("Exception in MUD command:"));
+        System.err.println(ColourPrinter.red(e.toString()));
+      }
+    }
+  }
+}
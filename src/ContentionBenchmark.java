@@ -0,0 +1,118 @@
+package src;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.rmi.RemoteException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/* Benchmark: how the server copes with many players joining, playing
+   and leaving at once, as they would on separate RMI worker threads.
+   Each thread stands in for one RMI worker, calling the server directly
+   (so the network isn't measured), over and over: join the server, walk
+   around, and quit. The MUDs are kept small so that joins often compete
+   for the last place in one. The threads keep count of the players in
+   each MUD, and the run fails if any MUD ever holds more than it should,
+   or if any place is still taken once everyone has quit.
+   Usage: java src.ContentionBenchmark [max threads] [sessions per thread] */
+public class ContentionBenchmark
+{
+  private static final String[] MOVES = {"look", "move north", "move south", "move east", "move west", "look"};
+
+  public static void main(String[] args)
+  throws Exception
+  {
+    int maxThreads = (args.length > 0) ? Integer.parseInt(args[0]) : 8;
+    int sessions = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+    System.setProperty("mud.saveDir", Files.createTempDirectory("mud-benchmark").toString());
+    System.setProperty("mud.maxServerPlayers", String.valueOf(maxThreads));
+    System.setProperty("mud.maxMUDPlayers", "2");
+    System.setProperty("mud.maxMUDCount", String.valueOf(Math.max(maxThreads / 4, 3)));
+
+    String[] edges = {"mud_configs/mud_1/mymud.edg", "mud_configs/mud_2/mymud.edg", "mud_configs/mud_3/mymud.edg"};
+    String[] messages = {"mud_configs/mud_1/mymud.msg", "mud_configs/mud_2/mymud.msg", "mud_configs/mud_3/mymud.msg"};
+    String[] things = {"mud_configs/mud_1/mymud.thg", "mud_configs/mud_2/mymud.thg", "mud_configs/mud_3/mymud.thg"};
+    PrintStream results = System.out;
+    System.setOut(new PrintStream(OutputStream.nullOutputStream())); // The server logs every join and move.
+    MUDServer server = new MUDServer(0, edges, messages, things, new String[] {"A", "B", "C"});
+
+    results.printf("%d sessions per thread, %d players per MUD, %d MUDs at most%n",
+                   sessions, server.maxMUDPlayers, server.maxMUDCount);
+    for(int threads = 1; threads <= maxThreads; threads *= 2) {
+      Result r = run(server, threads, sessions);
+      results.printf("%2d threads: %7.0f sessions/s  (%d turned away, most in one MUD %d)%n",
+                     threads, r.rate, r.refused, r.mostInMUD);
+    }
+    System.exit(0);
+  }
+
+  private static class Result
+  {
+    double rate;
+    int refused;
+    int mostInMUD;
+  }
+
+  /* Runs the given number of threads, each joining and quitting the given
+     number of times, and checks the limits throughout. */
+  private static Result run(MUDServer server, int threads, int sessions)
+  throws Exception
+  {
+    Result result = new Result();
+    AtomicInteger refused = new AtomicInteger();
+    AtomicInteger most = new AtomicInteger();
+    AtomicReference<String> broken = new AtomicReference<>();
+    // Players known to be in each MUD: from when they have joined it until
+    // they start to quit. The server may count them for longer, but never
+    // for less, so these must never go over the limit either.
+    ConcurrentHashMap<MUD, AtomicInteger> inMUD = new ConcurrentHashMap<>();
+
+    CountDownLatch done = new CountDownLatch(threads);
+    long start = System.nanoTime();
+    for(int t = 0; t < threads; t++) {
+      String prefix = "p" + threads + "-" + t + "-";
+      new Thread(() -> {
+        try {
+          for(int i = 0; i < sessions; i++) {
+            TransportBenchmark.QuietPlayer p = new TransportBenchmark.QuietPlayer(prefix + i);
+            AtomicInteger count = null;
+            if(server.joinServer(p)) {
+              count = inMUD.computeIfAbsent(server.playerList.get(p).location().mud, m -> new AtomicInteger());
+              int n = count.incrementAndGet();
+              if(n > server.maxMUDPlayers)
+                broken.set(n + " players in one MUD");
+              most.accumulateAndGet(n, Math::max);
+            }
+            else {
+              refused.incrementAndGet();
+            }
+            for(String move : MOVES)
+              server.makeMove(p, move);
+            if(count != null)
+              count.decrementAndGet();
+            server.playerDisconnect(p);
+          }
+        }
+        catch(RemoteException e) {
+          System.err.println(ColourPrinter.red(e.getMessage()));
+        }
+        done.countDown();
+      }).start();
+    }
+    done.await();
+    long elapsed = System.nanoTime() - start;
+    if(broken.get() != null)
+      throw new IllegalStateException("Limit broken with " + threads + " threads: " + broken.get());
+    for(AtomicInteger count : server.playerCounts.values()) {
+      if(count.get() != 0)
+        throw new IllegalStateException("Players left behind after everyone quit: " + server.playerCounts.values());
+    }
+    result.rate = threads * (double) sessions / (elapsed / 1e9);
+    result.refused = refused.get();
+    result.mostInMUD = most.get();
+    return result;
+  }
+}
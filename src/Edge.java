@@ -4,10 +4,9 @@
 
 package src;
 
-import java.io.Serializable;
-
-// Represents an path in the MUD (an edge in a graph).
-class Edge implements Serializable
+// Represents an path in the MUD (an edge in a graph) while its files are
+// being read (see Vertex).
+class Edge
 {
     public Vertex dest;   // Your destination if you walk down this path
     public String view;   // What you see if you look down this path
@@ -4,229 +4,240 @@
 
 package src;
 
-import java.io.FileReader;
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.Serializable;
-
-import java.rmi.RemoteException;
-
-import java.util.StringTokenizer;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Iterator;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * A class that can be used to represent a MUD; essenially, this is a
  * graph.
  */
 
-public class MUD implements Serializable
+public class MUD
 {
 /**
 * Private stuff
 */
 
-    // A record of all the vertices in the MUD graph. HashMaps are not
-    // synchronized, but we don't really need this to be synchronised.
-    private Map<String,Vertex> vertexMap = new HashMap<String,Vertex>();
+    // The files this MUD was created from, so that its template can be
+    // found again when loading a saved MUD (see Snapshot).
+    private String edgesfile, messagesfile, thingsfile;
+
+    // The locations, routes and messages, shared with other MUDs created
+    // from the same files.
+    private MUDTemplate template;
+
+    // The rooms whose contents have been looked at or changed in this MUD,
+    // by location number. A room is only created when it is first used,
+    // starting with the things in the template; rooms that haven't been
+    // used yet take up one empty slot.
+    private AtomicReferenceArray<Room> rooms;
 
-    private String startLocation = "";
+    // Commands that read or change this MUD are run one at a time on its
+    // own queue (see MUDServer.makeMove()).
+    private CommandQueue commands;
+
+    // Where changes to the things in this MUD are recorded, if anywhere.
+    private volatile WriteAheadLog log;
+
+    // The locations whose things have changed since changedThings() was
+    // last called, and what it found last time.
+    private Set<Integer> dirtyRooms = ConcurrentHashMap.newKeySet();
+    private Map<String,List<String>> changed = new LinkedHashMap<String,List<String>>();
 
     /**
-     * Add a new edge to the graph.
+     * Gets the room with a particular name, or null if there is no such
+     * location in the MUD.
      */
-    private void addEdge( String sourceName, String destName, String direction, String view )
+    private Room getRoom( String name )
+    {
+        int id = template.id( name );
+        return (id >= 0) ? getRoom( id ) : null;
+    }
+
+    private Room getRoom( int id )
     {
-        Vertex v = getOrCreateVertex( sourceName );
-        Vertex w = getOrCreateVertex( destName );
-        v.routes.put( direction, new Edge( w, view ) );
+        Room r = rooms.get( id );
+        if (r != null)
+            return r;
+        r = new Room( template.name( id ), template.exitsView( id ), template.things( id ) );
+        if (rooms.compareAndSet( id, null, r ))
+            return r;
+        return rooms.get( id );   // Someone else got there first.
     }
 
+/**
+ * All the public stuff. These methods are designed to hide the
+ * internal structure of the MUD. Could declare these on an
+ * interface and have external objects interact with the MUD via
+ * the interface.
+ */
+
     /**
-     * Create a new thing at a location.
+     * A constructor that creates the MUD.
      */
-    private void createThing( String loc, String thing )
+    public MUD( String _edgesfile, String _messagesfile, String _thingsfile )
+    {
+        edgesfile = _edgesfile;
+        messagesfile = _messagesfile;
+        thingsfile = _thingsfile;
+        template = MUDTemplate.load( edgesfile, messagesfile, thingsfile );
+        rooms = new AtomicReferenceArray<Room>( template.size() );
+
+        System.out.println("Start location: " + template.startLocation());
+    }
+
+    // This method enables us to display the entire MUD (mostly used
+    // for testing purposes so that we can check that the structure
+    // defined has been successfully parsed.
+    public String toString()
     {
-	   Vertex v = getOrCreateVertex( loc );
-	   v.things.add( thing );
+        StringBuilder summary = new StringBuilder();
+        for (int id = 0; id < template.size(); id++) {
+            Room r = rooms.get( id );
+            summary.append( "Node: " ).append( template.name( id ) );
+            summary.append( (r != null) ? r.toString() : template.describe( id ) );
+        }
+        summary.append( "Start location = " ).append( template.startLocation() );
+        return summary.toString();
     }
 
     /**
-     * Change the message associated with a location.
+     * A method to provide a string describing a particular location.
      */
-    private void changeMessage( String loc, String _msg )
+    public String locationInfo( String loc )
     {
-	   Vertex v = getOrCreateVertex( loc );
-	   v.msg = _msg;
+        return getRoom( loc ).toString();
     }
 
     /**
-     * If vertexName is not present, add it to vertexMap.  In either
-     * case, return the Vertex. Used only for creating the MUD.
+     * Describe a location as seen by a player in it, i.e. without
+     * listing the viewer themselves.
      */
-    private Vertex getOrCreateVertex( String vertexName )
+    public String locationInfo( String loc, String viewer )
     {
-        Vertex v = vertexMap.get( vertexName );
-        if (v == null) {
-            v = new Vertex( vertexName );
-            vertexMap.put( vertexName, v );
-        }
-        return v;
+        return getRoom( loc ).describe( viewer, null );
     }
 
     /**
-     * Gets vertex with a particular name.
+     * As above, but also leaving out a player who is about to leave.
      */
-    private Vertex getVertex( String vertexName )
+    public String locationInfo( String loc, String viewer, String leaving )
     {
-	   return vertexMap.get( vertexName );
+        return getRoom( loc ).describe( viewer, leaving );
     }
 
     /**
-     * Creates the edges of the graph on the basis of a file with the
-     * following fromat:
-     * source direction destination message
+     * The same as locationInfo( loc, viewer, leaving ), but as a RoomView.
      */
-    private void createEdges( String edgesfile )
+    public RoomView roomView( String loc, String viewer, String leaving )
     {
-        try {
-            FileReader fin = new FileReader( edgesfile );
-            BufferedReader edges = new BufferedReader( fin );
-            String line;
-            while((line = edges.readLine()) != null) {
-                StringTokenizer st = new StringTokenizer( line );
-                if( st.countTokens() < 3 ) {
-                    System.err.println( "Skipping ill-formatted line: " + line );
-                    continue;
-                }
-                String source = st.nextToken();
-                String dir    = st.nextToken();
-                String dest   = st.nextToken();
-                String msg = "";
-                while (st.hasMoreTokens()) {
-                    msg = msg + st.nextToken() + " ";
-                }
-                addEdge( source, dest, dir, msg );
-            }
-        }
-        catch( IOException e ) {
-            System.err.println( "Graph.createEdges( String " +
-            edgesfile + ")\n" + e.getMessage() );
-        }
+        return getRoom( loc ).view( viewer, leaving );
     }
 
     /**
-     * Records the messages assocated with vertices in the graph on
-     * the basis of a file with the following format:
-     * location message
-     * The first location is assumed to be the starting point for
-     * users joining the MUD.
+     * The queue that this MUD's commands are run on.
      */
-    private void recordMessages( String messagesfile )
+    public synchronized CommandQueue commands()
     {
-        try {
-            FileReader fin = new FileReader( messagesfile );
-            BufferedReader messages = new BufferedReader( fin );
-            String line;
-            boolean first = true; // For recording the start location.
-            while((line = messages.readLine()) != null) {
-                StringTokenizer st = new StringTokenizer( line );
-                if( st.countTokens( ) < 2 ) {
-                    System.err.println( "Skipping ill-formatted line " + line );
-                    continue;
-                }
-                String loc = st.nextToken();
-                String msg = "";
-                while (st.hasMoreTokens()) {
-                    msg = msg + st.nextToken() + " ";
-                }
-                changeMessage( loc, msg );
-                if (first) {      // Record the start location.
-                    startLocation = loc;
-                    first = false;
-                }
-            }
-        }
-        catch( IOException e ) {
-            System.err.println( "Graph.recordMessages( String " + messagesfile + ")\n" + e.getMessage() );
-        }
+        if (commands == null)
+            commands = new CommandQueue();
+        return commands;
     }
 
     /**
-     * Records the things assocated with vertices in the graph on
-     * the basis of a file with the following format:
-     * location thing1 thing2 ...
+     * The names of all the locations in the MUD.
      */
-    private void recordThings( String thingsfile )
+    public List<String> locations()
     {
-        try {
-            FileReader fin = new FileReader( thingsfile );
-            BufferedReader things = new BufferedReader( fin );
-            String line;
-            while((line = things.readLine()) != null) {
-                StringTokenizer st = new StringTokenizer( line );
-                if( st.countTokens( ) < 2 ) {
-                    System.err.println( "Skipping ill-formatted line " + line );
-                    continue;
-                }
-                String loc = st.nextToken();
-                while (st.hasMoreTokens()) {
-                    addThing( loc, st.nextToken());
-                }
-            }
-        }
-        catch( IOException e ) {
-            System.err.println( "Graph.recordThings( String " + thingsfile + ")\n" + e.getMessage() );
-        }
+        List<String> names = new Vector<String>();
+        for (int id = 0; id < template.size(); id++)
+            names.add( template.name( id ) );
+        return names;
     }
 
-/**
- * All the public stuff. These methods are designed to hide the
- * internal structure of the MUD. Could declare these on an
- * interface and have external objects interact with the MUD via
- * the interface.
- */
-
     /**
-     * A constructor that creates the MUD.
+     * The files this MUD was created from: edges, messages and things.
      */
-    public MUD( String edgesfile, String messagesfile, String thingsfile )
+    public String[] files()
     {
-        createEdges( edgesfile );
-        recordMessages( messagesfile ); // note: this sets the startLocation too.
-        recordThings( thingsfile );
+        return new String[] { edgesfile, messagesfile, thingsfile };
+    }
 
-        System.out.println( "Files read..." );
-        System.out.println( vertexMap.size( ) + " vertices." );
-        System.out.println("Start location: " + startLocation);
+    /**
+     * Checks if the things in any location have changed since the last
+     * call to changedThings().
+     */
+    public boolean isDirty()
+    {
+        return !dirtyRooms.isEmpty();
     }
 
-    // This method enables us to display the entire MUD (mostly used
-    // for testing purposes so that we can check that the structure
-    // defined has been successfully parsed.
-    public String toString()
+    /**
+     * The things in each location that no longer has the things it
+     * started with, by location name. This is all that needs saving.
+     * Only the locations changed since the last call are looked at, so
+     * this is quick enough to run on the MUD's queue. The map returned
+     * stays the same until the next call, and must not be changed.
+     */
+    public Map<String,List<String>> changedThings()
     {
-        String summary = "";
-        Iterator iter = vertexMap.keySet().iterator();
-        String loc;
-        while (iter.hasNext()) {
-            loc = (String)iter.next();
-            summary = summary + "Node: " + loc;
-            summary += ((Vertex)vertexMap.get( loc )).toString();
+        for (Iterator<Integer> iter = dirtyRooms.iterator(); iter.hasNext(); ) {
+            int id = iter.next();
+            iter.remove();
+            Room r = rooms.get( id );
+            List<String> things = new Vector<String>( r.things );
+            if (things.equals( template.things( id ) ))
+                changed.remove( r.name );
+            else
+                changed.put( r.name, Collections.unmodifiableList( things ) );
         }
-        summary += "Start location = " + startLocation;
-        return summary;
+        return Collections.unmodifiableMap( changed );
     }
 
     /**
-     * A method to provide a string describing a particular location.
+     * Checks if there is a location with this name.
      */
-    public String locationInfo( String loc )
+    public boolean hasLocation( String loc )
+    {
+        return template.id( loc ) >= 0;
+    }
+
+    /**
+     * The log that changes to things are recorded in, or null.
+     */
+    public WriteAheadLog log()
+    {
+        return log;
+    }
+
+    /**
+     * Start recording changes to things in a log. Changes made before
+     * this (e.g. while replaying an old log) aren't recorded.
+     */
+    public void setLog( WriteAheadLog _log )
+    {
+        log = _log;
+    }
+
+    /**
+     * Replace the things in a location, e.g. when loading a saved MUD.
+     * Returns false if there is no such location (any more).
+     */
+    public boolean setThings( String loc, List<String> things )
     {
-        return getVertex( loc ).toString();
+        int id = template.id( loc );
+        if (id < 0)
+            return false;
+        getRoom( id ).setThings( things );
+        dirtyRooms.add( id );
+        return true;
     }
 
     /**
@@ -234,16 +245,19 @@ public class MUD implements Serializable
      */
     public String startLocation()
     {
-        return startLocation;
+        return template.startLocation();
     }
 
     /**
-     * Add a thing to a location; used to enable us to add new users.
+     * Add a thing to a location.
      */
     public void addThing( String loc, String thing )
     {
-        Vertex v = getVertex( loc );
-        v.things.add( thing );
+        int id = template.id( loc );
+        getRoom( id ).addThing( thing );
+        dirtyRooms.add( id );
+        if (log != null)
+            log.addThing( loc, thing );
     }
 
     /**
@@ -251,56 +265,75 @@ public class MUD implements Serializable
      */
     public void delThing( String loc, String thing )
     {
-        Vertex v = getVertex( loc );
-        v.things.remove( thing );
+        int id = template.id( loc );
+        if (!getRoom( id ).delThing( thing ))
+            return;
+        dirtyRooms.add( id );
+        if (log != null)
+            log.delThing( loc, thing );
     }
 
     /**
-     * A method to enable a player to move through the MUD (a player
-     * is a thing). Checks that there is a route to travel on. Returns
-     * the location moved to.
+     * Add a player to a location; used to enable us to add new users.
      */
-    public String moveThing( String loc, String dir, String thing )
+    public void addPlayer( String loc, String player )
     {
-        Vertex v = getVertex( loc );
-        Edge e = v.routes.get( dir );
-        if (e == null)   // if there is no route in that direction
-            return loc;  // no move is made; return current location.
-        v.things.remove( thing );
-        e.dest.things.add( thing );
-        return e.dest.name;
+        Room r = getRoom( loc );
+        r.addPlayer( player );
     }
 
-    /* Checks if this MUD's vertices contain an item. */
-    public boolean containsItem(String item)
+    /**
+     * Remove a player from a location.
+     */
+    public void delPlayer( String loc, String player )
     {
-        for(Vertex v : vertexMap.values()) {
-            if(v.things.contains(item)) {
-                return true;
-            }
-        }
-        return false;
+        Room r = getRoom( loc );
+        r.delPlayer( player );
     }
 
-    /* Checks if a player's location contains an item.
-       Ignores players' usernames.*/
-    public boolean itemExists(String location, Vector<PlayerInterface> players, String item)
+    /**
+     * A method to enable a player to move through the MUD. Checks
+     * that there is a route to travel on. Returns the location moved to,
+     * or null if there is no route in that direction.
+     */
+    public String movePlayer( String loc, String dir, String player )
     {
-        try {
-            String info = locationInfo(location);
-            for(PlayerInterface pl : players) {
-                info = info.replace(pl.username(), "");
-            }
-            if(info.toLowerCase().contains(item.toLowerCase()))
-                return true;
-            else
-                return false;
-        }
-        catch(RemoteException e) {
-            System.err.println("RemoteException in itemExists():");
-            System.err.println(e.getMessage());
-            return false;
-        }
+        int from = template.id( loc );
+        int to = template.route( from, template.directionId( dir ) );
+        if (to < 0)       // if there is no route in that direction
+            return null;  // no move is made.
+        getRoom( from ).delPlayer( player );
+        getRoom( to ).addPlayer( player );
+        return template.name( to );
+    }
+
+    /**
+     * Makes some changes that are recorded in the log together (see
+     * WriteAheadLog.group()), e.g. a thing going from a location into a
+     * player's inventory.
+     */
+    public void logTogether( Runnable changes )
+    {
+        WriteAheadLog l = log;
+        if (l != null)
+            l.group( changes );
+        else
+            changes.run();
+    }
+
+    /* Takes an item (ignoring case) from a location, if it's there.
+       Returns the item's name as written in the MUD, or null if there
+       was no such item. */
+    public String takeThing(String location, String item)
+    {
+        int id = template.id(location);
+        String taken = getRoom(id).takeThing(item);
+        if(taken == null)
+            return null;
+        dirtyRooms.add(id);
+        if(log != null)
+            log.delThing(location, taken);
+        return taken;
     }
 
     /**
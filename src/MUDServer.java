@@ -1,36 +1,76 @@
 package src;
 
-import java.util.Vector;
-import java.util.HashMap;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.rmi.RemoteException;
 import java.io.IOException;
 import java.io.EOFException;
 
 public class MUDServer implements MUDServerInterface
 {
-  public static final int SHORT_DELAY = 1000; // times used by Thread.sleep.
-  public static final int LONG_DELAY = 2000;
-  public static final int MAX_SERVER_PLAYERS = 15; // Max players in server.
-  public static final int MAX_MUD_PLAYERS = 5; // Max players per MUD.
-  public static final int MAX_MUD_COUNT = 4; // Max no. of MUD's allowed on server.
-
-  public Vector<MUD> dungeonList; // MUD's available on this server.
-  public Vector<PlayerInterface> playerList; // Players connected to server.
-  public HashMap<MUD, Integer> playerCounts; // No. of players in each MUD.
+  public static final int SHORT_DELAY = 1000; // Time a result stays on screen before the view is redrawn.
+  public static final int CHAT_DELAY = 100; // MUD and server-wide messages sent within this time reach each player in one refresh.
+  public static final int DEFAULT_MAX_SERVER_PLAYERS = 15; // Max players in server.
+  public static final int DEFAULT_MAX_MUD_PLAYERS = 5; // Max players per MUD.
+  public static final int DEFAULT_MAX_MUD_COUNT = 4; // Max no. of MUD's allowed on server.
+  public static final int DEFAULT_AUTOSAVE_INTERVAL = 60; // Seconds between saves of each MUD (skipped if unchanged).
+  public static final int DEFAULT_PLAYER_SAVE_INTERVAL = 5; // Seconds between saves of connected players.
+  public static final int DEFAULT_PLAYER_CACHE_SIZE = 1000; // Player profiles kept in memory.
+  public static final int CONFIG_TRIES = 3; // Times a player is asked which kind of MUD to create.
+
+  // Server capacity. These can be set when starting the server with the
+  // system properties mud.maxServerPlayers, mud.maxMUDPlayers and mud.maxMUDCount.
+  public final int maxServerPlayers, maxMUDPlayers, maxMUDCount;
+
+  // Shared state is kept in concurrent collections, since every RMI thread
+  // reads it. New MUDs are only added while holding the dungeonList lock.
+  public CopyOnWriteArrayList<MUD> dungeonList; // MUD's available on this server.
+  public ConcurrentHashMap<PlayerInterface, PlayerSession> playerList; // Players connected to server, by callback stub.
+  public ConcurrentHashMap<String, PlayerSession> playersByName; // Players connected to server, by username.
+  public ConcurrentHashMap<MUD, AtomicInteger> playerCounts; // No. of players in each MUD.
+  public ConcurrentHashMap<MUD, Integer> mudConfigs; // Which configuration each MUD was created from.
+  private AtomicInteger serverCount; // No. of players on the server (including those still joining).
+  // Chat channels. The players in each location are the subscribers of its channel.
+  public ConcurrentHashMap<PlayerLocation, ChatChannel> roomChannels; // Each location of each MUD that has been visited.
+  public ConcurrentHashMap<MUD, ChatChannel> mudChannels; // Each MUD, for the players in it.
+  public ChatChannel serverChannel; // Every player on the server.
   public String[] edgesfiles, messagesfiles, thingsfiles, mudTypes; // Different MUD configurations.
+  private ExecutorService senders; // Delivers each player's queued output to their client.
+  private Scheduler scheduler; // Runs delayed effects, such as deferred view refreshes.
+  private PlayerStore players; // Saved player profiles.
+  private Autosave autosave; // Saves MUDs and players in the background.
+  public final SaveMetrics mudSaves = new SaveMetrics("MUD saves");
+  public final SaveMetrics playerSaves = new SaveMetrics("Player saves");
 
   /* Initialise server, and create some default MUDs for users to join. */
   public MUDServer( int serverport,
                     String[] _edgesfiles, String[] _messagesfiles, String[] _thingsfiles, String[] _mudTypes) {
       System.out.println("Initialising MUD Server...");
-      dungeonList = new Vector<>();
-      playerList = new Vector<>();
-      playerCounts = new HashMap<>();
+      dungeonList = new CopyOnWriteArrayList<>();
+      playerList = new ConcurrentHashMap<>();
+      playersByName = new ConcurrentHashMap<>();
+      playerCounts = new ConcurrentHashMap<>();
+      mudConfigs = new ConcurrentHashMap<>();
+      serverCount = new AtomicInteger();
+      roomChannels = new ConcurrentHashMap<>();
+      mudChannels = new ConcurrentHashMap<>();
+      serverChannel = new ChatChannel(ChatChannel.Scope.SERVER);
+      senders = Executors.newCachedThreadPool();
+      scheduler = new Scheduler();
+      players = new PlayerStore(Saver.SAVES.resolve("players"), Integer.getInteger("mud.playerCacheSize", DEFAULT_PLAYER_CACHE_SIZE));
       edgesfiles = _edgesfiles;
       messagesfiles = _messagesfiles;
       thingsfiles = _thingsfiles;
       mudTypes = _mudTypes;
+      maxServerPlayers = Integer.getInteger("mud.maxServerPlayers", DEFAULT_MAX_SERVER_PLAYERS);
+      maxMUDPlayers = Integer.getInteger("mud.maxMUDPlayers", DEFAULT_MAX_MUD_PLAYERS);
+      maxMUDCount = Math.max(Integer.getInteger("mud.maxMUDCount", DEFAULT_MAX_MUD_COUNT), mudTypes.length);
 
       if(!(edgesfiles.length == messagesfiles.length && messagesfiles.length == thingsfiles.length)) {
         System.out.println("Please use an equal number of edge(.edg), message(.msg) and thing(.thg) files.");
@@ -40,80 +80,63 @@ public class MUDServer implements MUDServerInterface
       // Create default MUD's for users to join. Create one of every type.
       for(int i = 0; i < mudTypes.length; i++) {
         System.out.println("\n### Creating MUD " + i + " ###");
-        MUD mud = Saver.loadState(i);
-        if(mud != null) {
-          System.out.println("Save file found for MUD " + i);
-          dungeonList.add(mud);
-        }
-        else {
-          System.out.println("No save file found for MUD " + i + ". Creating new MUD...");
-          dungeonList.add(new MUD(edgesfiles[i], messagesfiles[i], thingsfiles[i]));
-        }
-        playerCounts.put(dungeonList.get(i), 0);
+        dungeonList.add(Saver.loadState(i, edgesfiles[i], messagesfiles[i], thingsfiles[i], players));
+        playerCounts.put(dungeonList.get(i), new AtomicInteger());
+        mudChannels.put(dungeonList.get(i), new ChatChannel(ChatChannel.Scope.MUD));
+        mudConfigs.put(dungeonList.get(i), i);
       }
+      players.flush(); // Any inventories put back from the MUDs' logs.
+      // Save the MUDs every so often, so that their logs don't grow forever.
+      autosave = new Autosave();
+      autosave.every(Integer.getInteger("mud.autosaveSeconds", DEFAULT_AUTOSAVE_INTERVAL) * 1000L, this::saveMUDs);
+      autosave.every(Integer.getInteger("mud.playerSaveSeconds", DEFAULT_PLAYER_SAVE_INTERVAL) * 1000L, this::savePlayers);
       System.out.println("\nServer running...");
   }
 
-  /* Register player with the server, and ask them to choose a MUD to join. */
+  /* Register player with the server, and ask them to choose a MUD to join.
+     This is the only point the server asks the client for its username and
+     inventory; from then on it uses its own PlayerSession. */
   public boolean joinServer(PlayerInterface pl)
   throws RemoteException
   {
+    PlayerSession session = null;
+    boolean reserved = false; // A place on the server is held for the player...
+    boolean registered = false; // ...and is theirs once they are in playerList.
     try {
-      if(playerList.size() >= MAX_SERVER_PLAYERS) {
+      if(!reserve(serverCount, maxServerPlayers)) {
         pl.printOut(ColourPrinter.red("Server is full! Please try again later."));
         return false;
       }
+      reserved = true;
 
       // Check if unique username, and prompt for which MUD to join.
-      if(checkUnique(pl.username())) {
-        System.out.println("Player " + pl.username() + " connecting.");
-        playerList.add(pl);
+      String username = pl.username();
+      if(!PlayerStore.validName(username)) {
+        pl.printOut(ColourPrinter.red("Usernames can only use letters, digits, '_' and '-', and be at most "
+                                      + PlayerStore.MAX_NAME_LENGTH + " long."));
+        return false;
+      }
+      PlayerStore.Profile saved = players.get(username);
+      Runnable disconnect = () -> senders.execute(() -> dropPlayer(pl));
+      session = (saved != null) ? new PlayerSession(pl, username, saved.inventory, saved.version, senders, disconnect)
+                                : new PlayerSession(pl, username, pl.inventory(), 0, senders, disconnect);
+      if(playersByName.putIfAbsent(session.username, session) == null) {
+        System.out.println("Player " + session.username + " connecting.");
+        playerList.put(pl, session);
+        registered = true;
+        session.subscribe(ChatChannel.Scope.SERVER, serverChannel);
         System.out.println(playerList.size() + " players on server.");
-        pl.clearOutput();
-        pl.printOut(ColourPrinter.green("Connection successful!"));
-        int choice = Integer.parseInt(pl.promptMUD(dungeonList, MAX_MUD_COUNT)); // promptMUD() sets player's status to CHOOSINGMUD.
-
-        if(choice == dungeonList.size()) { // User chose to create new MUD.
-          if(choice >= MAX_MUD_COUNT) {
-            pl.printOut(ColourPrinter.red("Server maximum MUD count reached. Please choose one of the existing MUD's."));
-            joinServer(pl);
-            return false;
-          }
-          // Create and join a new MUD.
-          pl.printOut(ColourPrinter.blue("Creating new MUD."));
-          int mudConfig = pl.promptConfig(mudTypes);
-          dungeonList.add(new MUD(edgesfiles[mudConfig], messagesfiles[mudConfig], thingsfiles[mudConfig]));
-          playerCounts.put(dungeonList.get(choice), 0);
-          refreshPrompts(pl);
-          joinMUD(choice, pl);
-          return true;
-        }
-        // Join default MUD if invalid choice.
-        else if(choice < 0 || choice > dungeonList.size() || playerCounts.get(dungeonList.get(choice)) >= MAX_MUD_PLAYERS) {
-          int free = firstFreeMUD();
-          if(free >= 0) {
-            if(playerCounts.get(dungeonList.get(choice)) >= MAX_MUD_PLAYERS) {
-              pl.printOut(ColourPrinter.red("MUD " + choice + " is full. Joining first free MUD (" + free + ")"));
-            }
-            else {
-              pl.printOut(ColourPrinter.red("Invalid choice. Joining first free MUD (" + free + ")"));
-            }
-            Thread.sleep(LONG_DELAY);
-            joinMUD(free, pl);
-            return true;
-          }
-          else {
-            pl.printOut(ColourPrinter.red("All MUDs on server are full, please try again later."));
-            return false;
-          }
-        }
-        // Join chosen MUD.
-        else {
-          joinMUD(choice, pl);
-          return true;
+        session.clearOutput();
+        session.printOut(ColourPrinter.green("Connection successful!"));
+        if(saved != null) {
+          session.setLastLocation(saved.mudNo, saved.location);
+          session.sendInventory();
+          session.printOut(ColourPrinter.green("Save game loaded."));
         }
+        return chooseMUD(session);
       }
       else {
+        session = null;
         pl.printOut(ColourPrinter.red("Sorry, a player with that username is already connected."));
         return false;
       }
@@ -123,22 +146,11 @@ public class MUDServer implements MUDServerInterface
       System.err.println(ColourPrinter.red(e.getMessage()));
       return false;
     }
-    catch(NumberFormatException e) { // When user enters a non-integer as a choice.
-      int free = firstFreeMUD();
-      if(free >= 0) {
-        pl.printOut(ColourPrinter.red("Invalid choice. Joining first free MUD (" + free + ")"));
-        joinMUD(0, pl);
-        return true;
-      }
-      else {
-        pl.printOut(ColourPrinter.red("All MUDs on this server are full, please try again later."));
-        return false;
-      }
-    }
-    catch(InterruptedException e) {
-      System.err.println(ColourPrinter.red("InterruptedException in joinServer():"));
-      System.err.println(ColourPrinter.red(e.getMessage()));
-      return false;
+    finally {
+      if(reserved && !registered) // Didn't get in (e.g. the client failed), so give the place back.
+        serverCount.decrementAndGet();
+      if(session != null) // Make sure the player has seen the result before their game loop starts.
+        session.flush();
     }
   }
 
@@ -146,167 +158,54 @@ public class MUDServer implements MUDServerInterface
   public boolean joinMUD(int mudNo, PlayerInterface pl)
   throws RemoteException
   {
-    // Join the mud with ID mudNo.
-    MUD m = dungeonList.get(mudNo);
-    System.out.println("Player " + pl.username() + " is joining MUD " + mudNo);
-    pl.setStatus(PlayerState.PLAYING);
-    pl.clearOutput();
-    int count = playerCounts.get(m);
-    playerCounts.put(m, count+1);
-    m.addThing(m.startLocation(), pl.username()); // add to list of players.
-    pl.setLocation(m.startLocation()); // set player's location to mud's start location.
-    String info = m.locationInfo(m.startLocation());
-    pl.printOut(ColourPrinter.green("You have joined MUD " + mudNo));
-    pl.printOut(ColourPrinter.blue(info.replace(pl.username(), ""))); // print info about that location.
-    refreshViews(pl, false, false, false);
-    return true;
+    PlayerSession session = playerList.get(pl);
+    if(session == null || mudNo < 0 || mudNo >= dungeonList.size()) // Player hasn't joined the server, or no such MUD.
+      return false;
+    return joinMUD(mudNo, session);
   }
 
-  /* Process a user's command, and print result to user's output. */
+  /* Process a user's command, and print result to user's output.
+     Commands within a MUD are run on that MUD's command queue (see
+     runCommand()), so only one runs at a time in each MUD. */
   public void makeMove(PlayerInterface pl, String action)
   {
+    PlayerSession session = playerList.get(pl);
+    if(session == null) // Player hasn't joined the server.
+      return;
+    String name = session.username;
     try {
       String[] command = action.split("\\s+");
-      int mudNo;
-      MUD mud;
-      String item;
-      String message;
       switch(command[0]) {
-        case "move":
-          String dir = command[1];
-          mud = dungeonList.get(findMUD(pl.username()));
-          if(!mud.locationInfo(pl.curLocation()).contains(dir)) {
-            pl.printOut(ColourPrinter.red("There is no path in that direction!"));
-            return;
-          }
-          System.out.println(pl.username() + " is moving " + dir);
-          // Move in MUD.
-          String newLoc = mud.moveThing(pl.curLocation(), dir, pl.username());
-          refreshViews(pl, false, false, false); // update views of players in previous location.
-          pl.setLocation(newLoc);
-          refreshViews(pl, true, false, true); // update views of players in new location.
-          return;
-
-        case "pick":
-          item = command[1];
-          mudNo = findMUD(pl.username());
-          boolean picked = false;
-          // check if item is visibile.
-          synchronized(dungeonList.get(mudNo)) {
-            if(dungeonList.get(mudNo).itemExists(pl.curLocation(), playerList, item)) {
-              System.out.println(pl.username() + " is picking up " + item);
-              dungeonList.get(mudNo).delThing(pl.curLocation(), item);
-              picked = true;
-            }
-            else {
-              pl.printOut(ColourPrinter.red("There is no " + item + " here."));
-            }
-          }
-          if(picked) {
-            pl.addInventory(item);
-            pl.printOut(ColourPrinter.green(item + " added to inventory."));
-            Thread.sleep(SHORT_DELAY);
-            refreshViews(pl, true, false, true);
-          }
-          return;
-
-        case "drop":
-          item = command[1];
-          mudNo = findMUD(pl.username());
-          // check if player is carrying item.
-          if(pl.inventory().contains(item)) {
-            System.out.println(pl.username() + " is dropping " + item);
-            dungeonList.get(mudNo).addThing(pl.curLocation(), item);
-            pl.removeInventory(item);
-            pl.printOut(ColourPrinter.green(item + " removed from inventory."));
-            Thread.sleep(SHORT_DELAY);
-            refreshViews(pl, true, false, true);
-          }
-          else {
-            pl.printOut(ColourPrinter.red("You're not carrying " + item + "!"));
-          }
-          return;
-
-        case "look":
-          mudNo = findMUD(pl.username());
-          System.out.println(pl.username() + " is looking around " + pl.curLocation());
-          String info = dungeonList.get(mudNo).locationInfo(pl.curLocation());
-          info = info.replace(pl.username(), "");
-          pl.clearOutput();
-          if(info.equals(""))
-            pl.printOut("You see nothing of interest here.");
-          else
-            pl.printOut(info.replace(pl.username(), ""));
-          return;
-
-        case "inventory":
-          System.out.println(pl.username() + " is checking their inventory");
-          pl.clearOutput();
-          pl.printOut(ColourPrinter.blue(dungeonList.get(findMUD(pl.username())).locationInfo(pl.curLocation()).replace(pl.username(), "")));
-          pl.printOut(ColourPrinter.blue("Your inventory:"));
-          for(String thing : pl.inventory()) {
-            pl.printOut(ColourPrinter.blue("-" + thing));
-          }
-          return;
-
-        case "shout":
-          message = "";
-          for(String s : Arrays.copyOfRange(command, 1, command.length))
-            message += " " + s;
-          System.out.println(pl.username() + " is shouting at " + pl.curLocation());
-          broadcastPlayerMessage(pl, message);
-          return;
-
-        case "whisper":
-          message = "";
-          for(String s : Arrays.copyOfRange(command, 2, command.length))
-            message += " " + s;
-          System.out.println(pl.username() + " is whispering to " + command[1]);
-          sendPlayerMessage(pl.username(), command[1], message);
-          return;
-
         case "leave":
-          mudNo = findMUD(pl.username());
-          if(mudNo >= 0) { // Player may not be in any MUD.
-            int count;
-            // Leave current MUD.
-            System.out.println(pl.username() + " is leaving MUD " + mudNo);
-            pl.setStatus(PlayerState.NONE);
-            mud = dungeonList.get(mudNo);
-            synchronized(playerCounts.get(mud)) { // update MUD player count.
-              count = playerCounts.get(mud);
-              playerCounts.put(mud, count-1);
-            }
-            refreshViews(pl, false, true, false);
-            mud.delThing(pl.curLocation(), pl.username());
-            pl.setLocation("");
-            pl.clearInventory();
-
-            // Join another MUD.
-            mudNo = Integer.parseInt(pl.promptMUD(dungeonList, MAX_MUD_COUNT));
-            System.out.println(pl.username() + " is joining MUD " + mudNo);
-            mud = dungeonList.get(mudNo);
-            synchronized(playerCounts.get(mud)) {
-              count = playerCounts.get(mud);
-              playerCounts.put(mud, count+1);
-            }
-            mud.addThing(mud.startLocation(), pl.username());
-            pl.setLocation(mud.startLocation());
-            pl.addInventory("map");
-            pl.setStatus(PlayerState.PLAYING);
-            pl.printOut(ColourPrinter.blue(mud.locationInfo(pl.curLocation()).replace(pl.username(), "")));
-            refreshViews(pl, true, false, true);
+          PlayerLocation loc = session.location();
+          if(loc != null) { // Player may not be in any MUD.
+            // Leave current MUD, emptying their inventory while they are
+            // still in it, so that the change goes in its log.
+            System.out.println(name + " is leaving MUD " + loc.mudNo);
+            loc.mud.commands().invoke(() -> {
+              if(session.location() == null) // Already left (e.g. quit).
+                return;
+              session.clearInventory();
+              exitMUD(session);
+            });
+
+            // Join another MUD. This waits for the player's choice, so it
+            // isn't run on either MUD's queue.
+            if(chooseMUD(session))
+              session.addInventory("map");
           }
           return;
 
         case "quit":
-          System.out.println(pl.username() + " is leaving the server.");
+          System.out.println(name + " is leaving the server.");
           playerDisconnect(pl);
-          pl.printOut(ColourPrinter.green("Left server."));
+          session.printOut(ColourPrinter.green("Left server."));
           return;
 
         default:
-          pl.printOut(ColourPrinter.red("Please enter command:\n\t-help\n\t-move <north, south, east, west>\n\t-pick <item>\n\t-drop\n\t-look\n\t-inventory\n\t-shout <message>\n\t-whisper <user> <message>\n\t-leave"));
+          MUD mud = (session.location() != null) ? session.location().mud : null;
+          if(mud != null)
+            mud.commands().invoke(() -> runCommand(session, mud, command));
           return;
       }
     }
@@ -314,9 +213,10 @@ public class MUDServer implements MUDServerInterface
       System.err.println(ColourPrinter.red("RemoteException in makeMove():"));
       System.err.println(ColourPrinter.red(e.getMessage()));
     }
-    catch(InterruptedException e) {
-      System.err.println(ColourPrinter.red("InterruptedException in makeMove():"));
-      System.err.println(ColourPrinter.red(e.getMessage()));
+    finally {
+      // Other players' updates are left to be sent in the background, but the
+      // acting player should see the result before their client prompts again.
+      session.flush();
     }
   }
 
@@ -327,132 +227,475 @@ public class MUDServer implements MUDServerInterface
   public void playerDisconnect(PlayerInterface pl)
   throws RemoteException
   {
-    System.out.println("Player " + pl.username() + " disconnecting.");
-    int mudNo = findMUD(pl.username());
-    if(mudNo >= 0) { // Player may not be in any MUD.
-      MUD mud = dungeonList.get(mudNo);
-      synchronized(playerCounts.get(mud)) {
-        int count = playerCounts.get(mud);
-        playerCounts.put(mud, count-1);
-      }
-      refreshViews(pl, false, true, false);
-      mud.delThing(pl.curLocation(), pl.username());
-    }
-    playerList.remove(pl);
-    pl.setStatus(PlayerState.NONE);
+    PlayerSession session = playerList.remove(pl);
+    if(session == null) // Player never joined, or has already disconnected.
+      return;
+    System.out.println("Player " + session.username + " disconnecting.");
+    players.put(session.profile());
+    PlayerLocation loc = session.location();
+    if(loc != null) // Player may not be in any MUD.
+      loc.mud.commands().invoke(() -> exitMUD(session));
+    playersByName.remove(session.username);
+    serverCount.decrementAndGet();
+    session.subscribe(ChatChannel.Scope.SERVER, null);
+    scheduler.cancel(session);
+    scheduler.cancel(session.chatRefresh);
     System.out.println(playerList.size() + " players on server.");
   }
 
-
   /* PRIVATE METHODS */
 
-  /* Check if a username is unique, i.e. no connected player has
-     that username already. This works because the connecting player
-     will not be registered on the server yet, and so won't be a candidate
-     for getPlayerByName(). */
-  private boolean checkUnique(String name)
+  /* Disconnects a player whose client has stopped taking updates (see
+     PlayerSession). Run on its own thread, as it waits for their MUD. */
+  private void dropPlayer(PlayerInterface pl)
   {
-    if(getPlayerByName(name) != null) {
-      return false;
+    try {
+      playerDisconnect(pl);
     }
-    else {
+    catch(RemoteException e) {
+      System.err.println(ColourPrinter.red("RemoteException in dropPlayer():"));
+      System.err.println(ColourPrinter.red(e.getMessage()));
+    }
+  }
+
+  /* Carries out a command within the player's current MUD. This is only
+     run on that MUD's command queue, so it doesn't need any locks. */
+  private void runCommand(PlayerSession session, MUD mud, String[] command)
+  {
+    String name = session.username;
+    PlayerLocation loc = session.location();
+    if(loc == null || loc.mud != mud) // Player left this MUD while the command was queued.
+      return;
+    String item;
+    String message;
+    switch(command[0]) {
+      case "move":
+        String dir = command[1];
+        // Move in MUD.
+        String newLoc = mud.movePlayer(loc.location, dir, name);
+        if(newLoc == null) {
+          session.printOut(ColourPrinter.red("There is no path in that direction!"));
+          return;
+        }
+        System.out.println(name + " is moving " + dir);
+        refreshViews(session, false, false, false); // update views of players in previous location.
+        setPlayerLocation(session, loc.moveTo(newLoc));
+        refreshViews(session, true, false, true); // update views of players in new location.
+        return;
+
+      case "pick":
+        item = command[1];
+        // take the item, if it's here (the check and removal happen together),
+        // and log it leaving the room and joining the inventory as one change.
+        String[] taken = { null };
+        mud.logTogether(() -> {
+          taken[0] = mud.takeThing(loc.location, command[1]);
+          if(taken[0] != null)
+            session.addInventory(taken[0]);
+        });
+        if(taken[0] == null) {
+          session.printOut(ColourPrinter.red("There is no " + item + " here."));
+        }
+        else {
+          item = taken[0];
+          System.out.println(name + " is picking up " + item);
+          session.printOut(ColourPrinter.green(item + " added to inventory."));
+          refreshViews(session, false, false, false);
+          refreshLater(session);
+        }
+        return;
+
+      case "drop":
+        item = command[1];
+        // check if player is carrying item, and if so move it to the room as one change.
+        boolean[] dropped = { false };
+        mud.logTogether(() -> {
+          dropped[0] = session.removeInventory(command[1]);
+          if(dropped[0])
+            mud.addThing(loc.location, command[1]);
+        });
+        if(dropped[0]) {
+          System.out.println(name + " is dropping " + item);
+          session.printOut(ColourPrinter.green(item + " removed from inventory."));
+          refreshViews(session, false, false, false);
+          refreshLater(session);
+        }
+        else {
+          session.printOut(ColourPrinter.red("You're not carrying " + item + "!"));
+        }
+        return;
+
+      case "look":
+        System.out.println(name + " is looking around " + loc.location);
+        String info = mud.locationInfo(loc.location, name);
+        if(info.equals(""))
+          session.showView("You see nothing of interest here.", false);
+        else
+          session.showView(info, false);
+        return;
+
+      case "inventory":
+        System.out.println(name + " is checking their inventory");
+        StringBuilder view = new StringBuilder(ColourPrinter.blue(mud.locationInfo(loc.location, name)));
+        view.append("\n").append(ColourPrinter.blue("Your inventory:"));
+        for(String thing : session.inventory()) {
+          view.append("\n").append(ColourPrinter.blue("-" + thing));
+        }
+        session.showView(view.toString(), false);
+        return;
+
+      case "shout":
+        message = "";
+        for(String s : Arrays.copyOfRange(command, 1, command.length))
+          message += " " + s;
+        System.out.println(name + " is shouting at " + loc.location);
+        broadcastPlayerMessage(session, ChatChannel.Scope.ROOM, message);
+        return;
+
+      case "yell":
+        message = "";
+        for(String s : Arrays.copyOfRange(command, 1, command.length))
+          message += " " + s;
+        System.out.println(name + " is yelling across MUD " + loc.mudNo);
+        broadcastPlayerMessage(session, ChatChannel.Scope.MUD, message);
+        return;
+
+      case "broadcast":
+        message = "";
+        for(String s : Arrays.copyOfRange(command, 1, command.length))
+          message += " " + s;
+        System.out.println(name + " is broadcasting to the server");
+        broadcastPlayerMessage(session, ChatChannel.Scope.SERVER, message);
+        return;
+
+      case "whisper":
+        message = "";
+        for(String s : Arrays.copyOfRange(command, 2, command.length))
+          message += " " + s;
+        System.out.println(name + " is whispering to " + command[1]);
+        sendPlayerMessage(session, command[1], message);
+        return;
+
+      default:
+        session.printOut(ColourPrinter.red("Please enter command:\n\t-help\n\t-move <north, south, east, west>\n\t-pick <item>\n\t-drop\n\t-look\n\t-inventory\n\t-shout <message>\n\t-yell <message>\n\t-broadcast <message>\n\t-whisper <user> <message>\n\t-leave"));
+        return;
+    }
+  }
+
+  /* Asks a player which MUD to join (or create), and adds them to it.
+     Players who choose a full MUD are put in another copy of the same
+     MUD, and those who make an invalid choice go wherever there is most
+     space (see placePlayer()). Returns false if every MUD is full. */
+  private boolean chooseMUD(PlayerSession session)
+  throws RemoteException
+  {
+    int choice;
+    try {
+      choice = Integer.parseInt(promptMUD(session));
+    }
+    catch(NumberFormatException e) { // When user enters a non-integer as a choice.
+      choice = -1;
+    }
+
+    if(choice == dungeonList.size()) { // User chose to create new MUD.
+      if(choice >= maxMUDCount) {
+        session.printOut(ColourPrinter.red("Server maximum MUD count reached. Please choose one of the existing MUD's."));
+        return chooseMUD(session);
+      }
+      // Create and join a new MUD.
+      session.printOut(ColourPrinter.blue("Creating new MUD."));
+      int mudConfig = promptConfig(session);
+      if(mudConfig < 0) { // No valid choice, so go wherever there is space.
+        choice = -1;
+      }
+      else {
+        choice = createMUD(mudConfig);
+        if(choice < 0) { // Another player may have created one in the meantime.
+          session.printOut(ColourPrinter.red("Server maximum MUD count reached. Please choose one of the existing MUD's."));
+          return chooseMUD(session);
+        }
+        refreshPrompts(session);
+      }
+    }
+    boolean valid = (choice >= 0 && choice < dungeonList.size());
+    if(valid && joinMUD(choice, session)) // Join chosen MUD.
+      return true;
+
+    // Chosen MUD is full, or the choice was invalid.
+    int joined = placePlayer(session, valid ? mudConfigs.get(dungeonList.get(choice)) : -1);
+    if(joined >= 0) {
+      String notice = valid ? "MUD " + choice + " is full." : "Invalid choice.";
+      session.printOut(ColourPrinter.red(notice + " Joining MUD " + joined + " instead.")); // Printed under the new view, so it isn't cleared.
       return true;
     }
+    session.printOut(ColourPrinter.red("All MUDs on server are full, please try again later."));
+    return false;
   }
 
-  /* Find which MUD a given user is in (-1 if none). */
-  private int findMUD(String name)
+  /* Puts a player in the least-loaded MUD of the given configuration
+     (or of any configuration, if config is -1). If those are all full, a
+     new copy is started, as long as the server has room for another MUD.
+     Failing that, the player goes in the least-loaded MUD of any kind.
+     Returns the MUD joined, or -1 if there was no space anywhere. */
+  private int placePlayer(PlayerSession session, int config)
   {
-    for(MUD m : dungeonList) {
-      if(m.containsItem(name))
-        return dungeonList.indexOf(m);
+    while(true) {
+      int best = leastLoadedMUD(config);
+      if(best < 0) {
+        best = createMUD(Math.max(config, 0));
+        if(best >= 0)
+          refreshPrompts(session);
+      }
+      if(best < 0 && config >= 0)
+        best = leastLoadedMUD(-1);
+      if(best < 0)
+        return -1;
+      if(joinMUD(best, session))
+        return best;
+      // Someone else took the last place in the meantime, so look again.
     }
-    return -1;
   }
 
-  /* Returns index in dungeonList of first MUD with free space left,
-     or -1 if there are none.
-  */
-  private int firstFreeMUD()
+  /* Returns the index of the MUD with the fewest players (and space left)
+     of the given configuration (or any, if config is -1), or -1 if they
+     are all full. */
+  private int leastLoadedMUD(int config)
   {
-    for(int i = 0; i<dungeonList.size(); i++) {
-      if(playerCounts.get(dungeonList.get(i)) < MAX_MUD_PLAYERS)
-        return i;
+    int best = -1;
+    int bestCount = maxMUDPlayers;
+    for(int i = 0; i < dungeonList.size(); i++) {
+      MUD m = dungeonList.get(i);
+      int count = playerCounts.get(m).get();
+      if(count < bestCount && (config < 0 || mudConfigs.get(m) == config)) {
+        best = i;
+        bestCount = count;
+      }
     }
-    return -1;
+    return best;
   }
 
-  /* Checks if two players are in the same MUD, and the same location within that MUD. */
-  private boolean sameLocation(PlayerInterface playerOne, PlayerInterface playerTwo)
+  /* Creates a new MUD from the given configuration, and returns its index
+     in dungeonList, or -1 if the server has reached maxMUDCount. */
+  private int createMUD(int config)
   {
-    try {
-      return ((findMUD(playerOne.username()) == findMUD(playerTwo.username())) && playerOne.curLocation().equals(playerTwo.curLocation()));
+    if(dungeonList.size() >= maxMUDCount)
+      return -1;
+    MUD mud = new MUD(edgesfiles[config], messagesfiles[config], thingsfiles[config]);
+    synchronized(dungeonList) { // Another player may have created one in the meantime.
+      if(dungeonList.size() >= maxMUDCount)
+        return -1;
+      playerCounts.put(mud, new AtomicInteger());
+      mudChannels.put(mud, new ChatChannel(ChatChannel.Scope.MUD));
+      mudConfigs.put(mud, config);
+      dungeonList.add(mud);
+      System.out.println("Created MUD " + (dungeonList.size() - 1) + " (" + mudTypes[config] + ")");
+      return dungeonList.size() - 1;
     }
-    catch(RemoteException e) {
-      System.err.println(ColourPrinter.red("RemoteException in sameLocation():"));
-      System.err.println(ColourPrinter.red(e.getMessage()));
+  }
+
+  /* Add a registered player to a MUD, if it has space for them.
+     Returns false if the MUD is full. */
+  private boolean joinMUD(int mudNo, PlayerSession session)
+  {
+    // Join the mud with ID mudNo.
+    MUD m = dungeonList.get(mudNo);
+    if(!reserve(playerCounts.get(m), maxMUDPlayers))
       return false;
-    }
+    System.out.println("Player " + session.username + " is joining MUD " + mudNo);
+    m.commands().invoke(() -> {
+      // Players go back to where they were if they were last in this MUD,
+      // otherwise to its start location.
+      String start = session.lastLocation(mudNo);
+      if(start == null || !m.hasLocation(start))
+        start = m.startLocation();
+      session.setStatus(PlayerState.PLAYING);
+      m.addPlayer(start, session.username); // add to list of players.
+      setPlayerLocation(session, new PlayerLocation(mudNo, m, start));
+      String info = m.locationInfo(start, session.username);
+      session.showView(ColourPrinter.green("You have joined MUD " + mudNo) + "\n" + ColourPrinter.blue(info), false); // print info about that location.
+      refreshViews(session, false, false, false);
+    });
+    return true;
   }
 
-  /* Sends a player's message to all other players in the same location within
-     that MUD. */
-  private void broadcastPlayerMessage(PlayerInterface player, String message)
+  /* Takes a player out of their current MUD, updating the views of the
+     other players there and freeing up their place. Only run on the MUD's
+     command queue. */
+  private void exitMUD(PlayerSession session)
   {
+    PlayerLocation loc = session.location();
+    if(loc == null) // Already left.
+      return;
+    session.setStatus(PlayerState.NONE);
+    refreshViews(session, false, true, false);
+    loc.mud.delPlayer(loc.location, session.username);
+    setPlayerLocation(session, null);
+    playerCounts.get(loc.mud).decrementAndGet();
+  }
+
+  /* Asks a player which MUD to join, marking them as CHOOSINGMUD while
+     they decide so that refreshPrompts() can find them. */
+  private String promptMUD(PlayerSession session)
+  throws RemoteException
+  {
+    session.setStatus(PlayerState.CHOOSINGMUD);
     try {
-      for(PlayerInterface pl : playerList) {
-        if(pl.curLocation().equals(player.curLocation())) {
-          pl.addMessage(player.username(), message, PlayerMessage.MessageType.SHOUT);
-        }
-      }
-      refreshViews(player, true, false, true);
+      int mudCount = dungeonList.size();
+      return session.call(c -> c.promptMUD(mudCount, maxMUDCount));
     }
-    catch(RemoteException e) {
-      System.err.println(ColourPrinter.red("RemoteException in broadcastPlayerMessage():"));
-      System.err.println(ColourPrinter.red(e.getMessage()));
+    finally {
+      session.setStatus(PlayerState.NONE);
     }
   }
 
-  /* Sends a message to one specific player (anywhere within the same MUD). */
-  private void sendPlayerMessage(String sending_player, String receiver, String message)
+  /* Asks a player which kind of MUD to create, until they choose one of
+     the options. Returns -1 if they still haven't after a few tries (e.g.
+     their input has closed). */
+  private int promptConfig(PlayerSession session)
+  throws RemoteException
   {
-    PlayerInterface target = getPlayerByName(receiver);
-    PlayerInterface sender = getPlayerByName(sending_player);
-    try {
-      if(target != null) {
-          int mudOne = findMUD(sender.username());
-          int mudTwo = findMUD(target.username());
-          if(mudOne == mudTwo) {
-            target.addMessage(sending_player, message, PlayerMessage.MessageType.WHISPER);
-            refreshViews(target, true, false, false);
-          }
-          else
-            sender.printOut(ColourPrinter.red("That player isn't in your MUD!"));
+    for(int tries = 0; tries < CONFIG_TRIES; tries++) {
+      int config;
+      try {
+        config = session.call(c -> c.promptConfig(mudTypes));
       }
-      else {
-        sender.printOut(ColourPrinter.red("That username does not exist!"));
+      catch(NumberFormatException e) { // When user enters a non-integer as a choice.
+        config = -1;
       }
+      if(config >= 0 && config < mudTypes.length)
+        return config;
+      session.printOut(ColourPrinter.red("Invalid choice. Please enter one of the numbers listed."));
     }
-    catch(RemoteException e) {
-      System.err.println(ColourPrinter.red("RemoteException in sendPlayerMessage():"));
-      System.err.println(ColourPrinter.red(e.getMessage()));
+    return -1;
+  }
+
+  /* Records a player's new location in their session, and subscribes
+     them to the chat channels of that location and its MUD (which also
+     makes them one of its occupants). A null location removes the player
+     from both. */
+  private void setPlayerLocation(PlayerSession session, PlayerLocation loc)
+  {
+    if(loc != null) {
+      session.subscribe(ChatChannel.Scope.ROOM, roomChannels.computeIfAbsent(loc, k -> new ChatChannel(ChatChannel.Scope.ROOM)));
+      session.subscribe(ChatChannel.Scope.MUD, mudChannels.get(loc.mud));
+    }
+    else {
+      session.subscribe(ChatChannel.Scope.ROOM, null);
+      session.subscribe(ChatChannel.Scope.MUD, null);
     }
+    session.setLocation(loc);
   }
 
-  /* Returns the PlayerInterface of user with given name. */
-  private PlayerInterface getPlayerByName(String name)
+  /* Returns the players currently in a given location (empty if there are none). */
+  private Set<PlayerSession> occupants(PlayerLocation loc)
   {
-    try {
-      for(PlayerInterface pl : playerList) {
-        if(pl.username().equals(name))
-          return pl;
+    ChatChannel room = roomChannels.get(loc);
+    return (room != null) ? room.subscribers() : Collections.<PlayerSession>emptySet();
+  }
+
+  /* Saves the MUDs that are restored when the server starts (one of each
+     type), which also clears out their logs. MUDs that haven't changed
+     since they were last saved are skipped. */
+  public void saveMUDs()
+  {
+    for(int i = 0; i < mudTypes.length; i++) {
+      long start = System.nanoTime();
+      long written = Saver.saveState(dungeonList.get(i), i, this::savePlayers);
+      if(written >= 0)
+        mudSaves.saved(written, System.nanoTime() - start);
+      else
+        mudSaves.skipped();
+    }
+  }
+
+  /* Stops the background saves, and writes out and closes the MUDs' logs.
+     Run when the server shuts down, after the last save. */
+  public void close()
+  {
+    autosave.shutdown();
+    for(int i = 0; i < mudTypes.length; i++) {
+      WriteAheadLog log = dungeonList.get(i).log();
+      if(log == null)
+        continue;
+      try {
+        log.close();
+      }
+      catch(IOException e) {
+        System.err.println(ColourPrinter.red("IOException in close():"));
+        System.err.println(ColourPrinter.red(e.getMessage()));
       }
-      return null;
     }
-    catch(RemoteException e) {
-      System.err.println(ColourPrinter.red("RemoteException in sendPlayerMessage():"));
-      System.err.println(ColourPrinter.red(e.getMessage()));
-      return null;
+  }
+
+  /* Saves the profiles of the players on the server, and writes out any
+     that have changed. Doesn't need to contact the players' clients. */
+  public void savePlayers()
+  {
+    long start = System.nanoTime();
+    for(PlayerSession session : playerList.values())
+      players.put(session.profile());
+    long written = players.flush();
+    if(written >= 0)
+      playerSaves.saved(written, System.nanoTime() - start);
+    else
+      playerSaves.skipped();
+  }
+
+  /* Adds one to a player count, unless it has already reached max.
+     Returns false (leaving the count alone) if there is no space. */
+  private static boolean reserve(AtomicInteger count, int max)
+  {
+    while(true) {
+      int n = count.get();
+      if(n >= max)
+        return false;
+      if(count.compareAndSet(n, n + 1))
+        return true;
+    }
+  }
+
+  /* Sends a player's message to all other players in one of their chat
+     channels: their location, their MUD, or the whole server. It is added
+     once to the channel's log, where each of them reads it with their
+     next view. Only the channel's subscribers are refreshed. */
+  private void broadcastPlayerMessage(PlayerSession player, ChatChannel.Scope scope, String message)
+  {
+    ChatChannel channel = player.channel(scope);
+    if(channel == null)
+      return;
+    PlayerMessage.MessageType type = (scope == ChatChannel.Scope.ROOM) ? PlayerMessage.MessageType.SHOUT
+                                   : (scope == ChatChannel.Scope.MUD) ? PlayerMessage.MessageType.YELL
+                                   : PlayerMessage.MessageType.BROADCAST;
+    channel.post(new PlayerMessage(player.username, message, type));
+    if(scope == ChatChannel.Scope.ROOM) {
+      refreshViews(player, true, false, true);
+      return;
+    }
+    // Players elsewhere are refreshed on their own MUD's queue, once for
+    // however many messages arrive within CHAT_DELAY.
+    refreshView(player, false);
+    for(PlayerSession pl : channel.subscribers()) {
+      if(pl != player)
+        refreshChat(pl);
+    }
+  }
+
+  /* Sends a message to one specific player (anywhere within the same MUD). */
+  private void sendPlayerMessage(PlayerSession sender, String receiver, String message)
+  {
+    PlayerSession target = playersByName.get(receiver);
+    if(target != null) {
+        PlayerLocation locOne = sender.location();
+        PlayerLocation locTwo = target.location();
+        if(locOne != null && locTwo != null && locOne.mud == locTwo.mud) {
+          target.addMessage(new PlayerMessage(sender.username, message, PlayerMessage.MessageType.WHISPER));
+          refreshViews(target, true, false, false);
+        }
+        else
+          sender.printOut(ColourPrinter.red("That player isn't in your MUD!"));
+    }
+    else {
+      sender.printOut(ColourPrinter.red("That username does not exist!"));
     }
   }
 
@@ -464,68 +707,80 @@ public class MUDServer implements MUDServerInterface
      is also refreshed (the player carrying out the action).
 
      If leaveAction is true, then currentPlayer is assumed to be leaving the server/MUD
-     and so their username is hidden in the output from locationInfo(). This is so
-     sameLocation() still returns true, as they haven't actually been removed from the MUD yet.
-     This only works if refreshViews() is called BEFORE the player is removed from the MUD.
+     and so they are left out of the other players' views. This is so the other
+     occupants of their location can still be found, as they haven't actually
+     been removed from the MUD yet. This only works if refreshViews() is called BEFORE
+     the player is removed from the MUD.
 
      The noPrompt flag disables the "what do you do" prompt from being printed. */
-  private void refreshViews(PlayerInterface currentPlayer, boolean includingCurrent, boolean leaveAction, boolean noPrompt)
+  private void refreshViews(PlayerSession currentPlayer, boolean includingCurrent, boolean leaveAction, boolean noPrompt)
   {
-    try {
-      for(PlayerInterface player : playerList) {
-        if(!currentPlayer.equals(player) && sameLocation(currentPlayer, player) && player.status() == PlayerState.PLAYING) {
-          player.clearOutput();
-          if(leaveAction) {
-            player.printOut(ColourPrinter.blue(dungeonList.get(findMUD(player.username())).locationInfo(player.curLocation()).replace(player.username(), "").replace(currentPlayer.username(), "")));
-          }
-          else {
-            player.printOut(ColourPrinter.blue(dungeonList.get(findMUD(player.username())).locationInfo(player.curLocation()).replace(player.username(), "")));
-          }
-          player.printMessages();
-          player.printOut(ColourPrinter.blue("What do you do?"));
-          player.printOut(ColourPrinter.blue(">"), false);
-        }
-      }
-      if(includingCurrent) {
-        currentPlayer.clearOutput();
-        currentPlayer.printOut(ColourPrinter.blue(dungeonList.get(findMUD(currentPlayer.username())).locationInfo(currentPlayer.curLocation()).replace(currentPlayer.username(), "")));
-        currentPlayer.printMessages();
-        if(!noPrompt) {
-          currentPlayer.printOut(ColourPrinter.blue("What do you do?"));
-          currentPlayer.printOut(ColourPrinter.blue(">"), false);
-        }
+    PlayerLocation loc = currentPlayer.location();
+    if(loc == null) // Player isn't in a MUD, so there's no view to refresh.
+      return;
+    String leaving = leaveAction ? currentPlayer.username : null;
+    for(PlayerSession player : occupants(loc)) {
+      if(player != currentPlayer) {
+        player.showRoom(loc.mud.roomView(loc.location, player.username, leaving), true);
       }
     }
-    catch(RemoteException e) {
-      System.err.println(ColourPrinter.red("RemoteException in refreshViews():"));
-      System.err.println(ColourPrinter.red(e.getMessage()));
+    if(includingCurrent) {
+      currentPlayer.showRoom(loc.mud.roomView(loc.location, currentPlayer.username, null), !noPrompt);
     }
   }
 
+  /* Redraws a player's view (with the prompt) after SHORT_DELAY, so the
+     result of their last command stays on screen for a moment first.
+     The view is rendered when the refresh runs, and only the last of
+     several refreshes requested in quick succession is sent. */
+  private void refreshLater(PlayerSession player)
+  {
+    scheduler.afterOnce(player, SHORT_DELAY, () -> {
+      PlayerLocation loc = player.location();
+      if(loc != null)
+        loc.mud.commands().execute(() -> refreshView(player, true));
+    });
+  }
+
+  /* Redraws a player's view after CHAT_DELAY, so that they get any new
+     chat messages. Several requests within that time only redraw it once. */
+  private void refreshChat(PlayerSession player)
+  {
+    scheduler.afterOnce(player.chatRefresh, CHAT_DELAY, () -> {
+      PlayerLocation loc = player.location();
+      if(loc != null)
+        loc.mud.commands().execute(() -> refreshView(player, true));
+    });
+  }
+
+  /* Redraws one player's view of their current location. */
+  private void refreshView(PlayerSession player, boolean prompt)
+  {
+    PlayerLocation loc = player.location();
+    if(loc == null) // Player has left their MUD since this was requested.
+      return;
+    player.showRoom(loc.mud.roomView(loc.location, player.username, null), prompt);
+  }
+
   /* Refreshes the MUD-selection prompt. This ensures the players'
      list of options remains up-to-date (e.g. when another player
      creates a new MUD, the list of available MUD's will update
      for any other player stil within that screen). */
-  private void refreshPrompts(PlayerInterface currentPlayer)
+  private void refreshPrompts(PlayerSession currentPlayer)
   {
-    try {
-      for(PlayerInterface player : playerList) {
-        if(!currentPlayer.equals(player) && player.status() == PlayerState.CHOOSINGMUD) {
-          player.clearOutput();
-          player.printOut(ColourPrinter.blue("\nWhich MUD to join?"));
-          player.printOut(ColourPrinter.blue("Options are: "));
-          for(int i = 0; i < dungeonList.size(); i++) {
-            player.printOut(ColourPrinter.blue(i + ") Join MUD " + i));
-          }
-          if(dungeonList.size() < MAX_MUD_COUNT) // Only let users create new MUD if there's space on server.
-            player.printOut(ColourPrinter.blue(dungeonList.size() + ") New MUD"));
+    for(PlayerSession player : playerList.values()) {
+      if(player != currentPlayer && player.status() == PlayerState.CHOOSINGMUD) {
+        StringBuilder options = new StringBuilder(ColourPrinter.blue("\nWhich MUD to join?"));
+        options.append("\n").append(ColourPrinter.blue("Options are: "));
+        for(int i = 0; i < dungeonList.size(); i++) {
+          options.append("\n").append(ColourPrinter.blue(i + ") Join MUD " + i));
         }
+        if(dungeonList.size() < maxMUDCount) // Only let users create new MUD if there's space on server.
+          options.append("\n").append(ColourPrinter.blue(dungeonList.size() + ") New MUD"));
+        player.clearOutput();
+        player.printOut(options.toString());
       }
-      return;
-    }
-    catch(RemoteException e) {
-      System.err.println(ColourPrinter.red("RemoteException in refreshViews():"));
-      System.err.println(ColourPrinter.red(e.getMessage()));
     }
+    return;
   }
 }
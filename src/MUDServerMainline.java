@@ -9,8 +9,6 @@ import java.net.InetAddress;
 import java.rmi.RMISecurityManager;
 import java.rmi.Naming;
 import java.rmi.server.UnicastRemoteObject;
-import java.util.Vector;
-import java.rmi.RemoteException;
 
 public class MUDServerMainline
 {
@@ -18,37 +16,29 @@ public class MUDServerMainline
 
      Meant to be run as a thread on shutdown. When the server gets
      shut down (i.e. with CTRL+C) this class gets executed,
-     and handles a clean exit by calling saveState() on all connected players
-     to preserve their state.
+     and handles a clean exit by saving the state of all connected players
+     (on the server, so it doesn't matter if their clients can't be reached)
+     and of the MUDs.
   */
   private static class ServerShutdownHandler
   implements Runnable
   {
-    private Vector<PlayerInterface> players;
-    private Vector<MUD> muds;
+    private MUDServer server;
 
-    private ServerShutdownHandler(Vector<PlayerInterface> players, Vector<MUD> muds)
+    private ServerShutdownHandler(MUDServer server)
     {
-      this.players = players;
-      this.muds = muds;
+      this.server = server;
     }
 
     public void run()
     {
-      try {
-        System.out.println("Saving player states...");
-        for(PlayerInterface pl : players) {
-          pl.saveGame();
-        }
-        System.out.println("Saving mud states...");
-        for(MUD m : muds) {
-          Saver.saveState(m, muds.indexOf(m));
-        }
-      }
-      catch(RemoteException e) {
-        System.err.println("Error in ServerShutdownHandler thread:");
-        System.err.println(e.getMessage());
-      }
+      System.out.println("Saving player states...");
+      server.savePlayers();
+      System.out.println("Saving mud states...");
+      server.saveMUDs();
+      server.close();
+      System.out.println(server.mudSaves);
+      System.out.println(server.playerSaves);
     }
   }
 
@@ -57,6 +47,7 @@ public class MUDServerMainline
    */
   public static void main(String args[])
   {
+    ColourPrinter.plainOutput();
     if (args.length < 2) {
       System.err.println( "Usage:\njava solution.ServerMainline <registryport> <serverport>" ) ;
       return;
@@ -79,8 +70,16 @@ public class MUDServerMainline
       MUDServer serv = new MUDServer( serverport, edges, messages, things, mudTypes );
       MUDServerInterface stub = (MUDServerInterface)UnicastRemoteObject.exportObject( serv, serverport );
       Naming.rebind( "rmi://" + hostname + ":" + registryport + "/MUD", stub );
-      Thread hook = new Thread(new ServerShutdownHandler(serv.playerList, serv.dungeonList));
+      Thread hook = new Thread(new ServerShutdownHandler(serv));
       Runtime.getRuntime().addShutdownHook(hook);
+
+      // Also accept clients over a plain socket (see SocketServer), if asked to.
+      int socketport = Integer.getInteger("mud.socketPort", -1);
+      if(socketport >= 0) {
+        SocketServer sockets = new SocketServer(serv, socketport);
+        sockets.start();
+        System.out.println("Accepting socket clients on port " + sockets.port());
+      }
     }
     catch(java.net.UnknownHostException e) {
       System.err.println( e.getMessage() );
@@ -0,0 +1,370 @@
+/***********************************************************************
+ * cs3524.solutions.mud.MUDTemplate
+ ***********************************************************************/
+
+package src;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Collections;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * The fixed part of a MUD: its locations, the routes between them, their
+ * messages and the things they start with. Each set of files is only read
+ * once, and the template is then shared by every MUD created from those
+ * files, which only keep track of what has changed (see MUD.getRoom()).
+ * Nothing here changes once the template has been loaded.
+ *
+ * The files are first read into Vertex and Edge objects, which are then
+ * packed into arrays: each location and direction is given a number, and
+ * the routes from location v are entries routeStart[v] to
+ * routeStart[v + 1] - 1 of the route arrays. The objects are thrown away
+ * afterwards, so a location costs a few array slots rather than a map of
+ * its own, and following a route doesn't need to look anything up by name.
+ */
+
+class MUDTemplate
+{
+    // Templates loaded so far, by the files they were read from.
+    private static final Map<String,MUDTemplate> templates = new ConcurrentHashMap<String,MUDTemplate>();
+
+    // Only used while the files are being read.
+    private Map<String,Vertex> vertexMap = new HashMap<String,Vertex>();
+
+    private String startLocation = "";
+
+    // Locations, by number.
+    private Map<String,Integer> ids;  // Location number, by name.
+    private String[] names;           // Location names.
+    private String[] exitsViews;      // Message and exits, as shown to players.
+    private String[][] things;        // Things at each location when a MUD is created.
+
+    // Routes, grouped by the location they start from.
+    private Map<String,Integer> dirIds; // Direction number, by name.
+    private int[] routeStart;           // First route from each location (one extra entry at the end).
+    private int[] routeDir;             // Direction of each route.
+    private int[] routeDest;            // Where each route leads.
+
+    /**
+     * Add a new edge to the graph.
+     */
+    private void addEdge( String sourceName, String destName, String direction, String view )
+    {
+        Vertex v = getOrCreateVertex( sourceName );
+        Vertex w = getOrCreateVertex( destName );
+        v.routes.put( direction, new Edge( w, view ) );
+    }
+
+    /**
+     * Change the message associated with a location.
+     */
+    private void changeMessage( String loc, String _msg )
+    {
+	   Vertex v = getOrCreateVertex( loc );
+	   v.msg = _msg;
+    }
+
+    /**
+     * If vertexName is not present, add it to vertexMap.  In either
+     * case, return the Vertex. Used only for creating the MUD.
+     */
+    private Vertex getOrCreateVertex( String vertexName )
+    {
+        Vertex v = vertexMap.get( vertexName );
+        if (v == null) {
+            v = new Vertex( vertexName );
+            vertexMap.put( vertexName, v );
+        }
+        return v;
+    }
+
+    /**
+     * Reads a file line by line, and passes each line to a handler. The
+     * first few words (words of them, or all of them if words is -1) are
+     * split off, and the rest of the line is passed as one message, each
+     * word followed by a space. Lines with fewer than minWords words are
+     * reported (with their line number) and skipped. The file is read as
+     * a stream, and is always closed afterwards.
+     */
+    private static void readLines( String file, int words, int minWords, String caller,
+                                   Consumer<String[]> handler )
+    {
+        try (BufferedReader in = new BufferedReader( new InputStreamReader( Files.newInputStream( Paths.get( file ) ) ), 1 << 16 )) {
+            String line;
+            int lineNo = 0;
+            while ((line = in.readLine()) != null) {
+                lineNo++;
+                String[] split = split( line, words, minWords );
+                if (split == null) {
+                    System.err.println( "Skipping ill-formatted line " + lineNo + " of " + file + ": " + line );
+                    continue;
+                }
+                handler.accept( split );
+            }
+        }
+        catch( IOException e ) {
+            System.err.println( "Graph." + caller + "( String " + file + ")\n" + e.getMessage() );
+        }
+    }
+
+    /**
+     * As above, but keeps the lines to be used later.
+     */
+    private static List<String[]> readLines( String file, int words, int minWords, String caller )
+    {
+        List<String[]> lines = new ArrayList<String[]>();
+        readLines( file, words, minWords, caller, lines::add );
+        return lines;
+    }
+
+    /**
+     * Splits a line into words separated by whitespace, as described
+     * above. Returns null if it has fewer than minWords words.
+     */
+    private static String[] split( String line, int words, int minWords )
+    {
+        List<String> split = new ArrayList<String>();
+        StringBuilder msg = null;
+        int count = 0;
+        int i = 0, n = line.length();
+        while (i < n) {
+            while (i < n && Character.isWhitespace( line.charAt( i ) ))
+                i++;
+            int start = i;
+            while (i < n && !Character.isWhitespace( line.charAt( i ) ))
+                i++;
+            if (i == start)
+                break;
+            count++;
+            if (words < 0 || count <= words) {
+                split.add( line.substring( start, i ) );
+                continue;
+            }
+            if (msg == null)
+                msg = new StringBuilder( n - start + 1 );
+            msg.append( line, start, i ).append( ' ' );
+        }
+        if (count < minWords)
+            return null;
+        if (words >= 0)
+            split.add( (msg != null) ? msg.toString() : "" );
+        return split.toArray( new String[split.size()] );
+    }
+
+    /**
+     * Creates the edges of the graph on the basis of a file with the
+     * following fromat:
+     * source direction destination message
+     * Each edge is added as soon as its line has been read.
+     */
+    private void createEdges( String edgesfile )
+    {
+        readLines( edgesfile, 3, 3, "createEdges",
+                   line -> addEdge( line[0], line[2], line[1], line[3] ) );
+    }
+
+    /**
+     * Records the messages assocated with vertices in the graph on
+     * the basis of lines read from a file with the following format:
+     * location message
+     * The first location is assumed to be the starting point for
+     * users joining the MUD.
+     */
+    private void recordMessages( List<String[]> messages )
+    {
+        for (String[] line : messages)
+            changeMessage( line[0], line[1] );
+        if (!messages.isEmpty())    // Record the start location.
+            startLocation = messages.get( 0 )[0];
+    }
+
+    /**
+     * Records the things assocated with vertices in the graph on
+     * the basis of lines read from a file with the following format:
+     * location thing1 thing2 ...
+     */
+    private void recordThings( List<String[]> things )
+    {
+        for (String[] line : things) {
+            Vertex v = getOrCreateVertex( line[0] );
+            for (int i = 1; i < line.length; i++)
+                v.things.add( line[i] );
+        }
+    }
+
+    /**
+     * Numbers the locations and directions, and packs the vertices
+     * read from the files into arrays.
+     */
+    private void pack()
+    {
+        int n = vertexMap.size();
+        ids = new HashMap<String,Integer>( n * 2 );
+        names = new String[n];
+        exitsViews = new String[n];
+        things = new String[n][];
+        int routes = 0;
+        for (Vertex v : vertexMap.values()) {
+            ids.put( v.name, ids.size() );
+            routes += v.routes.size();
+        }
+
+        dirIds = new HashMap<String,Integer>();
+        String[] noThings = new String[0];
+        routeStart = new int[n + 1];
+        routeDir = new int[routes];
+        routeDest = new int[routes];
+        int next = 0;
+        // The vertices are visited in the same order as when they were
+        // numbered, so the routes end up in order of location number.
+        for (Vertex v : vertexMap.values()) {
+            int id = ids.get( v.name );
+            StringBuilder exits = new StringBuilder( "\n" );
+            exits.append( v.msg ).append( "\n" );
+            routeStart[id] = next;
+            for (Map.Entry<String,Edge> route : v.routes.entrySet()) {
+                Edge e = route.getValue();
+                exits.append( "To the " ).append( route.getKey() )
+                     .append( " there is " ).append( e.view ).append( "\n" );
+                Integer dir = dirIds.get( route.getKey() );
+                if (dir == null) {
+                    dir = dirIds.size();
+                    dirIds.put( route.getKey(), dir );
+                }
+                routeDir[next] = dir;
+                routeDest[next] = ids.get( e.dest.name );
+                next++;
+            }
+            names[id] = v.name;
+            exitsViews[id] = exits.toString();
+            things[id] = v.things.isEmpty() ? noThings : v.things.toArray( noThings );
+        }
+        routeStart[n] = routes;
+    }
+
+    /**
+     * Reads the files, and packs the graph into arrays. The messages and
+     * things are read in the background while the edges are being added
+     * to the graph, and are then added in that order.
+     */
+    private MUDTemplate( String edgesfile, String messagesfile, String thingsfile )
+    {
+        CompletableFuture<List<String[]>> messages =
+            CompletableFuture.supplyAsync( () -> readLines( messagesfile, 1, 2, "recordMessages" ) );
+        CompletableFuture<List<String[]>> things =
+            CompletableFuture.supplyAsync( () -> readLines( thingsfile, -1, 2, "recordThings" ) );
+        createEdges( edgesfile );
+        recordMessages( messages.join() ); // note: this sets the startLocation too.
+        recordThings( things.join() );
+        pack();
+        vertexMap = null;
+
+        System.out.println( "Files read..." );
+        System.out.println( names.length + " vertices." );
+    }
+
+    /**
+     * Returns the template for a set of files, reading them if this is
+     * the first MUD to use them.
+     */
+    public static MUDTemplate load( String edgesfile, String messagesfile, String thingsfile )
+    {
+        String key = edgesfile + "\n" + messagesfile + "\n" + thingsfile;
+        return templates.computeIfAbsent( key, k -> new MUDTemplate( edgesfile, messagesfile, thingsfile ) );
+    }
+
+    /**
+     * The number of locations. They are numbered from 0 to size() - 1.
+     */
+    public int size()
+    {
+        return names.length;
+    }
+
+    /**
+     * The number of a location, or -1 if there is no such location.
+     */
+    public int id( String name )
+    {
+        Integer id = ids.get( name );
+        return (id != null) ? id : -1;
+    }
+
+    public String name( int id )
+    {
+        return names[id];
+    }
+
+    /**
+     * The location's message and exits, as shown to players.
+     */
+    public String exitsView( int id )
+    {
+        return exitsViews[id];
+    }
+
+    /**
+     * The things at a location when a MUD is created.
+     */
+    public List<String> things( int id )
+    {
+        return Collections.unmodifiableList( Arrays.asList( things[id] ) );
+    }
+
+    /**
+     * The number of a direction, or -1 if no route goes that way.
+     */
+    public int directionId( String dir )
+    {
+        Integer id = dirIds.get( dir );
+        return (id != null) ? id : -1;
+    }
+
+    /**
+     * Where the route in a direction (by number) from a location leads,
+     * or -1 if there is no route that way.
+     */
+    public int route( int id, int dir )
+    {
+        for (int i = routeStart[id]; i < routeStart[id + 1]; i++) {
+            if (routeDir[i] == dir)
+                return routeDest[i];
+        }
+        return -1;
+    }
+
+    /**
+     * A location as it is when a MUD is created (with no players).
+     */
+    public String describe( int id )
+    {
+        StringBuilder summary = new StringBuilder( exitsViews[id] );
+        if (things[id].length > 0) {
+            summary.append( "You can see: " );
+            for (String thing : things[id])
+                summary.append( thing ).append( " " );
+        }
+        summary.append( "\n\n" );
+        return summary.toString();
+    }
+
+    /**
+     * The start location for new MUD users.
+     */
+    public String startLocation()
+    {
+        return startLocation;
+    }
+}
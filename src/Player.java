@@ -6,16 +6,21 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.IOException;
 import java.io.Serializable;
-import java.util.ArrayDeque;
 
 class Player implements PlayerInterface, Serializable
 {
+    private static final ColourPrinter.Span PROMPT = ColourPrinter.span(ColourPrinter.ANSI_BLUE, "What do you do?");
+    private static final ColourPrinter.Span CURSOR = ColourPrinter.span(ColourPrinter.ANSI_BLUE, ">");
+
     public String username;
     public PlayerState status;
     public String curLocation;
     private Vector<String> inventory;
     public transient BufferedReader inputStream;
-    public transient ArrayDeque<PlayerMessage> messageBuffer; // a buffer of chat messages.
+    public transient ChatLog messageBuffer; // the most recent chat messages.
+    private transient RoomView room; // the view of the current location, kept up to date by the server.
+    private transient Screen screen;
+    private transient PlayerMessage[] recent; // messages being drawn, reused from one redraw to the next.
 
     public Player( String name )
     {
@@ -24,15 +29,9 @@ class Player implements PlayerInterface, Serializable
       inventory = new Vector<>();
       inventory.add("map");
       inputStream = new BufferedReader(new InputStreamReader(System.in));
-      messageBuffer = new ArrayDeque<>();
-    }
-
-    /* Wrapper for Saver method to be called on a player remotely.
-       Allows the player's state to be saved by a call from the server,
-       e.g. when the server aborts/shuts down. */
-    public void saveGame()
-    {
-      Saver.saveState(this);
+      messageBuffer = new ChatLog();
+      screen = new Screen();
+      recent = new PlayerMessage[ChatLog.DEPTH];
     }
 
     public Vector<String> inventory()
@@ -80,31 +79,42 @@ class Player implements PlayerInterface, Serializable
       curLocation = loc;
     }
 
-    /* Adds a message to the messageBuffer.
-       Also ensures buffer remains a certain size. */
-    public void addMessage(String sender, String msg, PlayerMessage.MessageType type)
+    /* Adds a message to the messageBuffer. Once it is full, the oldest
+       message makes way (see ChatLog). */
+    public void addMessage(PlayerMessage msg)
     {
-      synchronized(messageBuffer) {
-        messageBuffer.add(new PlayerMessage(sender, msg, type));
-        if(messageBuffer.size() > 5) { // Remove old messages.
-          messageBuffer.removeFirst();
-        }
-      }
+      messageBuffer.add(msg);
     }
 
     /* Prints the contents of the messageBuffer. */
-    public void printMessages()
-    {
-      synchronized(messageBuffer) {
-        for(PlayerMessage msg : messageBuffer) {
-          long time = System.currentTimeMillis() - msg.timestamp;
-          if(msg.type == PlayerMessage.MessageType.SHOUT) {
-            System.out.println(ColourPrinter.yellow(msg.sender + " says: " + msg.text + " (" + time/1000 + " seconds ago)"));
-          }
-          else {
-            System.out.println(ColourPrinter.purple(msg.sender + " tells you: " + msg.text + " (" + time/1000 + " seconds ago)"));
-          }
+    public synchronized void printMessages()
+    {
+      ColourPrinter.StyledText out = new ColourPrinter.StyledText(256);
+      appendMessages(out);
+      System.out.print(out);
+    }
+
+    /* Adds the contents of the messageBuffer to some output, a line each. */
+    private void appendMessages(ColourPrinter.StyledText out)
+    {
+      long now = System.currentTimeMillis();
+      int count = messageBuffer.since(0, recent);
+      for(int i = 0; i < count; i++) {
+        PlayerMessage msg = recent[i];
+        if(msg.type == PlayerMessage.MessageType.SHOUT) {
+          out.start(ColourPrinter.ANSI_YELLOW).append(msg.sender).append(" says: ");
+        }
+        else if(msg.type == PlayerMessage.MessageType.YELL) {
+          out.start(ColourPrinter.ANSI_YELLOW).append(msg.sender).append(" yells: ");
+        }
+        else if(msg.type == PlayerMessage.MessageType.BROADCAST) {
+          out.start(ColourPrinter.ANSI_CYAN).append("[All] ").append(msg.sender).append(": ");
+        }
+        else {
+          out.start(ColourPrinter.ANSI_PURPLE).append(msg.sender).append(" tells you: ");
         }
+        out.append(msg.text).append(" (").append((now - msg.timestamp)/1000).append(" seconds ago)").end().newline();
+        recent[i] = null;
       }
     }
 
@@ -124,32 +134,53 @@ class Player implements PlayerInterface, Serializable
       }
     }
 
-    /* Clears the user's console. */
-    public void clearOutput()
+    /* Redraws the user's whole screen: the view of their location, their
+       chat messages and (optionally) the prompt. The server sends each
+       refresh as one of these rather than a series of separate calls, and
+       the whole screen is drawn off screen and written in one go (see
+       Screen), so the user never sees it flicker or half drawn. */
+    public synchronized void showView(String view, PlayerMessage[] messages, boolean prompt)
     {
-      try {
-        final String os = System.getProperty("os.name");
-        Process p;
+      for(PlayerMessage msg : messages)
+        addMessage(msg);
+      draw(screen.begin().append(view), prompt);
+    }
 
-        if (os.contains("Windows")) {
-          p = Runtime.getRuntime().exec("cls");
-        }
-        else {
-          p = Runtime.getRuntime().exec("clear");
-        }
+    /* Redraws the screen with a view of the user's location, which the
+       client keeps so that the server can send just the changes to it. */
+    public synchronized void showRoom(RoomView _room, PlayerMessage[] messages, boolean prompt)
+    {
+      room = _room;
+      for(PlayerMessage msg : messages)
+        addMessage(msg);
+      ColourPrinter.StyledText frame = screen.begin().start(ColourPrinter.ANSI_BLUE);
+      room.render(frame);
+      draw(frame.end(), prompt);
+    }
 
-        // Redirect output from forked exec() process.
-        BufferedReader in = new BufferedReader( new InputStreamReader(p.getInputStream()) );
-        String line;
-        while ((line = in.readLine()) != null) {
-          System.out.println(line);
-        }
-        in.close();
-      }
-      catch (final Exception e) {
-        System.err.println(ColourPrinter.red("Exception in clearOutput():"));
-        System.err.println(ColourPrinter.red(e.getMessage()));
-      }
+    /* Updates the kept view of the user's location, and redraws it. */
+    public synchronized void updateRoom(RoomView.Change[] changes, PlayerMessage[] messages, boolean prompt)
+    {
+      if(room == null) // Can't happen: the server always sends a whole view first.
+        return;
+      showRoom(room.apply(changes), messages, prompt);
+    }
+
+    /* Finishes drawing the screen, after the view: the chat messages and
+       the prompt. Nothing is allocated, so redrawing makes no garbage. */
+    private void draw(ColourPrinter.StyledText frame, boolean prompt)
+    {
+      frame.newline();
+      appendMessages(frame);
+      if(prompt)
+        frame.append(PROMPT).newline().append(CURSOR);
+      screen.show();
+    }
+
+    /* Clears the user's console. */
+    public void clearOutput()
+    {
+      screen.clear();
     }
 
     /* Primary method for getting input from user.
@@ -158,8 +189,8 @@ class Player implements PlayerInterface, Serializable
     public String promptMove()
     throws IOException
     {
-      System.out.println(ColourPrinter.blue("What do you do?"));
-      System.out.print(ColourPrinter.blue(">"));
+      System.out.println(PROMPT);
+      System.out.print(CURSOR);
       String move = inputStream.readLine();
       return move;
     }
@@ -181,19 +212,19 @@ class Player implements PlayerInterface, Serializable
     }
 
     /* Helper method to prompt user which MUD to join. */
-    public String promptMUD(Vector<MUD> mudList, int maxMUDCount)
+    public String promptMUD(int mudCount, int maxMUDCount)
     throws RemoteException
     {
       try {
         setStatus(PlayerState.CHOOSINGMUD);
         System.out.println("\nWhich MUD to join?");
         System.out.println("Options are: ");
-        for(int i = 0; i < mudList.size(); i++) {
+        for(int i = 0; i < mudCount; i++) {
           System.out.println(i + ") Join MUD " + i);
         }
-        if(mudList.size() < maxMUDCount) // Only let users create new MUD if there's space on server.
-          System.out.println(mudList.size() + ") New MUD");
-        System.out.print(ColourPrinter.blue(">"));
+        if(mudCount < maxMUDCount) // Only let users create new MUD if there's space on server.
+          System.out.println(mudCount + ") New MUD");
+        System.out.print(CURSOR);
         String choice = inputStream.readLine();
         setStatus(PlayerState.NONE);
         return choice;
@@ -14,9 +14,6 @@ public interface PlayerInterface extends Remote
   public String username()
   throws RemoteException;
 
-  public void saveGame()
-  throws RemoteException;
-
   public void addInventory(String item)
   throws RemoteException;
 
@@ -46,13 +43,19 @@ public interface PlayerInterface extends Remote
   public void clearOutput()
   throws RemoteException;
 
-  public void addMessage(String msg, String sender, PlayerMessage.MessageType type)
+  public void printMessages()
   throws RemoteException;
 
-  public void printMessages()
+  public void showView(String view, PlayerMessage[] messages, boolean prompt)
+  throws RemoteException;
+
+  public void showRoom(RoomView room, PlayerMessage[] messages, boolean prompt)
+  throws RemoteException;
+
+  public void updateRoom(RoomView.Change[] changes, PlayerMessage[] messages, boolean prompt)
   throws RemoteException;
 
-  public String promptMUD(Vector<MUD> mudList, int maxMUDCount)
+  public String promptMUD(int mudCount, int maxMUDCount)
   throws RemoteException;
 
   public int promptConfig(String[] mudTypes)
@@ -0,0 +1,43 @@
+package src;
+
+/* Where a connected player currently is: the MUD they are in (and its
+   index in the server's dungeonList) and their location within it.
+   Instances are immutable, so the server can swap a player's entry in
+   its index in one step whenever they join, move or leave. */
+class PlayerLocation
+{
+  public final int mudNo;
+  public final MUD mud;
+  public final String location;
+
+  public PlayerLocation(int _mudNo, MUD _mud, String _location)
+  {
+    mudNo = _mudNo;
+    mud = _mud;
+    location = _location;
+  }
+
+  /* Returns the same MUD with a different location. */
+  public PlayerLocation moveTo(String loc)
+  {
+    return new PlayerLocation(mudNo, mud, loc);
+  }
+
+  /* Checks if both entries are in the same MUD, and the same location within it. */
+  public boolean sameLocation(PlayerLocation other)
+  {
+    return other != null && mud == other.mud && location.equals(other.location);
+  }
+
+  /* Entries for the same location are equal, so they can key the server's
+     per-location occupant sets. */
+  public boolean equals(Object o)
+  {
+    return (o instanceof PlayerLocation) && sameLocation((PlayerLocation) o);
+  }
+
+  public int hashCode()
+  {
+    return 31 * System.identityHashCode(mud) + location.hashCode();
+  }
+}
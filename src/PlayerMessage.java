@@ -1,17 +1,22 @@
 package src;
 
+import java.io.Serializable;
+
 /* Represents a player-to-player chat message.
-   The timestamp is used to clear old messages. */
-public class PlayerMessage
+   Messages are made once on the server, kept in ChatLogs, and sent to
+   each client that should see them. The timestamp shows how old they are. */
+public class PlayerMessage implements Serializable
 {
+  private static final long serialVersionUID = 1L;
+
   public static enum MessageType {
-    SHOUT, WHISPER
+    SHOUT, YELL, BROADCAST, WHISPER // To a location, a MUD, the server, and one player.
   }
 
-  public String sender;
-  public String text;
-  public MessageType type;
-  public long timestamp;
+  public final String sender;
+  public final String text;
+  public final MessageType type;
+  public final long timestamp;
 
   public PlayerMessage(String sendername, String msg, MessageType mtype)
   {
@@ -20,4 +25,13 @@ public class PlayerMessage
     type = mtype;
     timestamp = System.currentTimeMillis();
   }
+
+  /* A message as it was received from elsewhere (see Protocol). */
+  public PlayerMessage(String sendername, String msg, MessageType mtype, long _timestamp)
+  {
+    sender = sendername;
+    text = msg;
+    type = mtype;
+    timestamp = _timestamp;
+  }
 }
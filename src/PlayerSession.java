@@ -0,0 +1,410 @@
+package src;
+
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.function.BooleanSupplier;
+
+/* The server's own record of a connected player: their username, status,
+   location and inventory. MUDServer reads these directly instead of asking
+   the player's client for them on every command, and saves them in its
+   PlayerStore (see profile()). Changes to the location and inventory are
+   pushed out to the client's copy; the status is only needed by the server.
+
+   Chat messages aren't sent as they arrive. The player reads them from
+   their own inbox and the channels they are subscribed to (their room,
+   their MUD and the server; see ChatChannel), and those they haven't
+   seen yet go out with their next view.
+
+   Everything sent to the client goes through an outbox, which is drained
+   in order by one sender task at a time. Callers never wait on the network
+   (unless they ask to, with call() or flush()), so a slow or dead client
+   only holds up its own updates. The outbox is limited to MAX_OUTBOX
+   updates: a client that falls that far behind is taken to be dead, so
+   everything waiting for it is dropped, nothing more is queued, and the
+   server is told to disconnect the player (see the constructor). */
+class PlayerSession
+{
+  public static final int MAX_OUTBOX = Integer.getInteger("mud.maxOutbox", 1000); // Updates waiting for one client.
+
+  /* A single remote call to make on the player's client. */
+  public interface ClientUpdate
+  {
+    public void send(PlayerInterface client)
+    throws RemoteException;
+  }
+
+  /* A remote call whose result the server needs to wait for. */
+  public interface ClientCall<T>
+  {
+    public T call(PlayerInterface client)
+    throws RemoteException;
+  }
+
+  /* An update waiting in the outbox. Views are full redraws, so a newer
+     view replaces one that is still waiting behind it. */
+  private static class Update
+  {
+    private final boolean view;
+    private final ClientUpdate action;
+
+    private Update(boolean view, ClientUpdate action)
+    {
+      this.view = view;
+      this.action = action;
+    }
+  }
+
+  /* Marks a point in the outbox, for flush(). */
+  private static class Sent
+  implements ClientUpdate
+  {
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    public void send(PlayerInterface client)
+    {
+      done.complete(null);
+    }
+  }
+
+  public final PlayerInterface client; // Callback stub for the player's client.
+  public final String username;
+  public final Object chatRefresh = new Object(); // Scheduler key for redraws that deliver chat (see MUDServer).
+  private volatile PlayerState status;
+  private volatile PlayerLocation location; // null when not in any MUD.
+  private volatile int lastMUD = -1;        // The MUD the player was last in (even after leaving it)...
+  private volatile String lastLocation;     // ...and where they were in it.
+  private final Vector<String> inventory;   // Changed while holding this...
+  private long inventoryVersion;            // ...along with this, the number of changes made to it.
+  private final ChatLog inbox = new ChatLog(); // Whispers, and shouts left unread in earlier rooms.
+  private final ChatLog.Reader inboxReader = inbox.reader();
+  private final ChatChannel[] channels = new ChatChannel[ChatChannel.Scope.values().length]; // Guarded by inbox. By scope.
+  private final ChatLog.Reader[] readers = new ChatLog.Reader[channels.length];             // Guarded by inbox.
+  private final Executor sender; // Runs drain() for this (and other) sessions.
+  private final ArrayDeque<Update> outbox = new ArrayDeque<>();
+  private boolean draining = false; // Guarded by outbox.
+  private boolean overflowed = false; // Guarded by outbox. Set once, when the client has fallen too far behind.
+  private final Runnable onOverflow;
+  private RoomView shownRoom; // The room view the client has, if it is showing one. Only used by the sender.
+
+  /* onOverflow is run (once, on the thread that queued the update that
+     didn't fit) if the client falls more than MAX_OUTBOX updates behind. */
+  public PlayerSession(PlayerInterface _client, String _username, List<String> _inventory, long _inventoryVersion,
+                       Executor _sender, Runnable _onOverflow)
+  {
+    client = _client;
+    username = _username;
+    status = PlayerState.NONE;
+    inventory = new Vector<>(_inventory);
+    inventoryVersion = _inventoryVersion;
+    sender = _sender;
+    onOverflow = _onOverflow;
+  }
+
+  public String username()
+  {
+    return username;
+  }
+
+  public PlayerState status()
+  {
+    return status;
+  }
+
+  public void setStatus(PlayerState _status)
+  {
+    status = _status;
+  }
+
+  public PlayerLocation location()
+  {
+    return location;
+  }
+
+  public void setLocation(PlayerLocation loc)
+  {
+    location = loc;
+    if(loc != null)
+      setLastLocation(loc.mudNo, loc.location);
+    String name = (loc != null) ? loc.location : "";
+    send(false, c -> c.setLocation(name));
+  }
+
+  /* Subscribes the player to a channel in place of the one they had with
+     the same scope (or to none, if null). Anything still unread in the
+     old channel is kept for the next view. */
+  public void subscribe(ChatChannel.Scope scope, ChatChannel channel)
+  {
+    int s = scope.ordinal();
+    synchronized(inbox) {
+      if(channels[s] == channel)
+        return;
+      if(channels[s] != null) {
+        channels[s].unsubscribe(this);
+        for(PlayerMessage msg : readers[s].read())
+          inbox.add(msg);
+      }
+      channels[s] = channel;
+      readers[s] = (channel != null) ? channel.subscribe(this) : null;
+    }
+  }
+
+  /* The channel the player is subscribed to with the given scope, or null. */
+  public ChatChannel channel(ChatChannel.Scope scope)
+  {
+    synchronized(inbox) {
+      return channels[scope.ordinal()];
+    }
+  }
+
+  /* Where the player was last, e.g. before they last left the server. */
+  public synchronized void setLastLocation(int mudNo, String loc)
+  {
+    lastMUD = mudNo;
+    lastLocation = loc;
+  }
+
+  /* Where the player was last in a MUD, or null if they were never in it
+     (or were in another MUD since). */
+  public synchronized String lastLocation(int mudNo)
+  {
+    return (lastMUD == mudNo) ? lastLocation : null;
+  }
+
+  /* The player's state, as it is saved in the PlayerStore. */
+  public synchronized PlayerStore.Profile profile()
+  {
+    return new PlayerStore.Profile(username, inventory(), lastMUD, lastLocation, inventoryVersion);
+  }
+
+  /* Returns a copy of the inventory, safe to iterate over. */
+  public Vector<String> inventory()
+  {
+    return new Vector<>(inventory);
+  }
+
+  public void addInventory(String item)
+  {
+    changeInventory(() -> inventory.add(item));
+    send(false, c -> c.addInventory(item));
+  }
+
+  /* Returns false if the player wasn't carrying the item. */
+  public boolean removeInventory(String item)
+  {
+    if(!changeInventory(() -> inventory.remove(item)))
+      return false;
+    send(false, c -> c.removeInventory(item));
+    return true;
+  }
+
+  public void clearInventory()
+  {
+    changeInventory(() -> {
+      inventory.removeAllElements();
+      return true;
+    });
+    send(false, PlayerInterface::clearInventory);
+  }
+
+  /* Changes the inventory, and records the whole of it in the log of the
+     MUD the player is in (if it has one), so that it can be put back after
+     a crash along with the MUD's own changes. The log is locked before the
+     session, as when a change is grouped with a change to the MUD (see
+     WriteAheadLog.group()). Returns false if the change made no difference. */
+  private boolean changeInventory(BooleanSupplier change)
+  {
+    PlayerLocation loc = location;
+    WriteAheadLog log = (loc != null) ? loc.mud.log() : null;
+    boolean[] changed = { false };
+    Runnable apply = () -> {
+      synchronized(this) {
+        if(!change.getAsBoolean())
+          return;
+        changed[0] = true;
+        inventoryVersion++;
+        if(log != null)
+          log.inventory(username, inventoryVersion, inventory);
+      }
+    };
+    if(log != null)
+      log.group(apply);
+    else
+      apply.run();
+    return changed[0];
+  }
+
+  /* Sends the whole inventory to the client, e.g. when it has been
+     loaded from the PlayerStore. */
+  public void sendInventory()
+  {
+    Vector<String> items = inventory();
+    send(false, c -> {
+      c.clearInventory();
+      for(String item : items)
+        c.addInventory(item);
+    });
+  }
+
+  /* OUTPUT TO THE CLIENT */
+
+  public void printOut(String msg)
+  {
+    send(false, c -> c.printOut(msg));
+  }
+
+  public void printOut(String msg, boolean newLine)
+  {
+    send(false, c -> c.printOut(msg, newLine));
+  }
+
+  public void clearOutput()
+  {
+    send(false, PlayerInterface::clearOutput);
+  }
+
+  /* Adds a message to the player's inbox. It is sent with their next view. */
+  public void addMessage(PlayerMessage msg)
+  {
+    inbox.add(msg);
+  }
+
+  /* Redraws the player's whole screen in a single remote call, along
+     with any chat messages they haven't seen yet. The messages are read
+     when the view is sent, so a view that gets replaced doesn't lose them. */
+  public void showView(String view, boolean prompt)
+  {
+    send(true, c -> {
+      shownRoom = null;
+      c.showView(view, unreadMessages(), prompt);
+    });
+  }
+
+  /* Redraws the player's screen with a view of their location. If the
+     client is already showing the same location, only the changes to it
+     are sent (see RoomView). */
+  public void showRoom(RoomView room, boolean prompt)
+  {
+    send(true, c -> {
+      RoomView.Change[] changes = (shownRoom != null) ? shownRoom.changesTo(room) : null;
+      shownRoom = null; // In case the call fails part way.
+      if(changes != null)
+        c.updateRoom(changes, unreadMessages(), prompt);
+      else
+        c.showRoom(room, unreadMessages(), prompt);
+      shownRoom = room;
+    });
+  }
+
+  private PlayerMessage[] unreadMessages()
+  {
+    synchronized(inbox) {
+      PlayerMessage[] msgs = inboxReader.read();
+      for(ChatLog.Reader reader : readers) {
+        if(reader != null)
+          msgs = ChatLog.merge(msgs, reader.read());
+      }
+      return msgs;
+    }
+  }
+
+  /* Makes a remote call once everything queued before it has been sent,
+     and waits for its result. Used for prompts that need the user's answer.
+     The call itself doesn't go through the outbox, so updates queued while
+     the user makes up their mind (e.g. by MUDServer.refreshPrompts()) are
+     still sent to them straight away. */
+  public <T> T call(ClientCall<T> call)
+  throws RemoteException
+  {
+    flush();
+    return call.call(client);
+  }
+
+  /* Waits until everything queued so far has been sent to the client (or
+     dropped, if the client has fallen too far behind). */
+  public void flush()
+  {
+    Sent sent = new Sent();
+    send(false, sent);
+    try {
+      sent.done.get();
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    catch(ExecutionException e) {
+      // Can't happen: nothing completes it exceptionally.
+    }
+  }
+
+  /* Queues an update, and starts a sender task if one isn't already running. */
+  private void send(boolean view, ClientUpdate action)
+  {
+    boolean overflow = false;
+    synchronized(outbox) {
+      if(overflowed) {
+        dropped(action);
+        return;
+      }
+      if(view && !outbox.isEmpty() && outbox.peekLast().view)
+        outbox.pollLast(); // Superseded before it was sent.
+      if(outbox.size() >= MAX_OUTBOX) {
+        overflowed = overflow = true;
+        for(Update update : outbox)
+          dropped(update.action);
+        outbox.clear();
+        dropped(action);
+      }
+      else {
+        outbox.add(new Update(view, action));
+        if(draining)
+          return;
+        draining = true;
+      }
+    }
+    if(overflow) {
+      System.err.println(ColourPrinter.red(username + " has fallen " + MAX_OUTBOX + " updates behind."));
+      onOverflow.run();
+    }
+    else {
+      sender.execute(this::drain);
+    }
+  }
+
+  /* Lets anyone waiting in flush() carry on, when an update is dropped. */
+  private static void dropped(ClientUpdate action)
+  {
+    if(action instanceof Sent)
+      ((Sent) action).done.complete(null);
+  }
+
+  /* Sends queued updates in order until the outbox is empty. */
+  private void drain()
+  {
+    while(true) {
+      Update next;
+      synchronized(outbox) {
+        next = outbox.poll();
+        if(next == null) {
+          draining = false;
+          return;
+        }
+      }
+      try {
+        next.action.send(client);
+      }
+      catch(RemoteException e) {
+        System.err.println(ColourPrinter.red("RemoteException sending update to " + username + ":"));
+        System.err.println(ColourPrinter.red(e.getMessage()));
+      }
+      catch(RuntimeException e) { // Keep draining, so later updates aren't stuck.
+        System.err.println(ColourPrinter.red("Exception sending update to " + username + ":"));
+        System.err.println(ColourPrinter.red(e.toString()));
+      }
+    }
+  }
+}
@@ -0,0 +1,295 @@
+package src;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Pattern;
+
+/* The server's store of player profiles: what each player is carrying, and
+   where they were when they last left. Profiles are kept in one small
+   file per player, under saves/players.
+
+   Recently used profiles are cached in memory, up to a fixed number. New
+   profiles are only written to the cache and marked dirty; flush() then
+   writes out all the dirty ones in one go, and is run every so often in
+   the background (see Autosave). A dirty profile that
+   drops out of the cache is kept until it has been written.
+
+   A profile that isn't in memory is read from disk without holding the
+   store's lock, so that one player's read doesn't hold up everyone
+   else's joins and saves; other players wanting the same profile wait
+   for that one read.
+
+   Usernames name files, so only names made of letters, digits, '_' and
+   '-' are allowed (see validName()). */
+class PlayerStore
+{
+  public static final int MAGIC = 0x4d555050; // "MUPP"
+  public static final int VERSION = 2; // Version 1 had no inventory version.
+  public static final int MAX_NAME_LENGTH = 32;
+
+  private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-]{1," + MAX_NAME_LENGTH + "}");
+
+  /* A player's saved state. Profiles never change once made. */
+  public static final class Profile
+  {
+    public final String username;
+    public final List<String> inventory;
+    public final int mudNo;         // The MUD they were last in, or -1.
+    public final String location;   // Their location in that MUD, or null.
+    public final long version;      // Changes made to the inventory so far (see PlayerSession).
+
+    public Profile(String _username, List<String> _inventory, int _mudNo, String _location, long _version)
+    {
+      username = _username;
+      inventory = Collections.unmodifiableList(new ArrayList<>(_inventory));
+      mudNo = _mudNo;
+      location = _location;
+      version = _version;
+    }
+
+    public boolean equals(Object o)
+    {
+      if(!(o instanceof Profile))
+        return false;
+      Profile p = (Profile) o;
+      return username.equals(p.username) && inventory.equals(p.inventory) && version == p.version
+          && mudNo == p.mudNo && (location == null ? p.location == null : location.equals(p.location));
+    }
+
+    public int hashCode()
+    {
+      return username.hashCode() * 31 + inventory.hashCode();
+    }
+  }
+
+  private final Path dir;
+  private final LinkedHashMap<String, Profile> cache; // Guarded by this. Least recently used first.
+  private Map<String, Profile> dirty = new HashMap<>(); // Guarded by this. Not written yet.
+  private Map<String, Profile> flushing = Collections.emptyMap(); // Guarded by this. Being written.
+  private final Map<String, CompletableFuture<Profile>> loading = new HashMap<>(); // Guarded by this. Being read.
+  private final Object writing = new Object(); // Held by flush(), so that writes happen in order.
+
+  public PlayerStore(Path _dir, int cacheSize)
+  {
+    dir = _dir;
+    cache = new LinkedHashMap<String, Profile>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String, Profile> eldest)
+      {
+        return size() > cacheSize;
+      }
+    };
+  }
+
+  /* Whether a username can be stored: 1 to MAX_NAME_LENGTH letters,
+     digits, '_' or '-'. */
+  public static boolean validName(String username)
+  {
+    return username != null && NAME.matcher(username).matches();
+  }
+
+  /* Returns a player's profile, or null if they have never been saved. */
+  public Profile get(String username)
+  {
+    if(!validName(username))
+      throw new IllegalArgumentException("Invalid username");
+    CompletableFuture<Profile> load;
+    boolean reader = false;
+    synchronized(this) {
+      Profile p = cached(username);
+      if(p != null)
+        return p;
+      load = loading.get(username);
+      if(load == null) {
+        load = new CompletableFuture<>();
+        loading.put(username, load);
+        reader = true;
+      }
+    }
+    if(!reader)
+      return load.join();
+
+    Profile p = null;
+    try {
+      p = read(username);
+      boolean current;
+      synchronized(this) {
+        current = (loading.get(username) == load);
+        if(current && p != null)
+          cache.put(username, p);
+      }
+      if(!current) // Saved while it was being read, so look again.
+        p = get(username);
+      return p;
+    }
+    finally {
+      synchronized(this) {
+        loading.remove(username, load);
+      }
+      load.complete(p);
+    }
+  }
+
+  /* Saves a player's profile. It is written to disk by the next flush(),
+     unless it hasn't changed. */
+  public synchronized void put(Profile p)
+  {
+    if(!validName(p.username))
+      throw new IllegalArgumentException("Invalid username");
+    if(p.equals(cache.get(p.username)))
+      return;
+    cache.put(p.username, p);
+    dirty.put(p.username, p);
+    loading.remove(p.username); // Any read under way is older than this.
+  }
+
+  /* Puts back an inventory recorded in a MUD's log (see WriteAheadLog),
+     if it is newer than the one in the player's profile. Returns false if
+     it was older. */
+  public boolean recover(String username, List<String> inventory, long version)
+  {
+    if(!validName(username))
+      return false;
+    Profile p = get(username);
+    synchronized(this) {
+      Profile now = cached(username);
+      if(now != null)
+        p = now;
+      if(p != null && p.version >= version)
+        return false;
+      put(new Profile(username, inventory, (p != null) ? p.mudNo : -1, (p != null) ? p.location : null, version));
+      return true;
+    }
+  }
+
+  /* Writes out every profile that has changed since the last flush.
+     Returns the number of bytes written, or -1 if nothing had changed. */
+  public long flush()
+  {
+    synchronized(writing) {
+      Map<String, Profile> batch;
+      synchronized(this) {
+        if(dirty.isEmpty())
+          return -1;
+        batch = dirty;
+        flushing = batch;
+        dirty = new HashMap<>();
+      }
+      try {
+        Files.createDirectories(dir);
+      }
+      catch(IOException e) {
+        System.err.println(ColourPrinter.red("IOException in PlayerStore.flush():"));
+        System.err.println(ColourPrinter.red(e.getMessage()));
+      }
+      List<Profile> failed = new ArrayList<>();
+      long written = 0;
+      for(Profile p : batch.values()) {
+        try {
+          written += write(p);
+        }
+        catch(IOException e) {
+          System.err.println(ColourPrinter.red("IOException saving " + p.username + ":"));
+          System.err.println(ColourPrinter.red(e.getMessage()));
+          failed.add(p);
+        }
+      }
+      synchronized(this) {
+        flushing = Collections.emptyMap();
+        for(Profile p : failed) // Try again next time, unless there's a newer one by now.
+          dirty.putIfAbsent(p.username, p);
+      }
+      return written;
+    }
+  }
+
+  /* The profile in memory, if any. */
+  private Profile cached(String username)
+  {
+    Profile p = cache.get(username);
+    if(p == null)
+      p = dirty.get(username);
+    if(p == null)
+      p = flushing.get(username);
+    return p;
+  }
+
+  private Path file(String username)
+  {
+    if(!validName(username)) // Keep it inside dir.
+      throw new IllegalArgumentException("Invalid username");
+    return dir.resolve(username + ".prof");
+  }
+
+  /* Writes a profile under a temporary name, forces it to disk, and then
+     moves it into place, so a crash part way through leaves the old one
+     intact. Returns the size of the file. */
+  private long write(Profile p)
+  throws IOException
+  {
+    Path file = file(p.username);
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    long written;
+    try(FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                               StandardOpenOption.TRUNCATE_EXISTING);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+      out.writeInt(MAGIC);
+      out.writeByte(VERSION);
+      out.writeUTF(p.username);
+      out.writeInt(p.mudNo);
+      out.writeUTF(p.location != null ? p.location : "");
+      out.writeInt(p.inventory.size());
+      for(String item : p.inventory)
+        out.writeUTF(item);
+      out.writeLong(p.version);
+      out.flush();
+      channel.force(false); // Must be on disk before the logs holding the inventory are deleted (see Saver).
+      written = out.size();
+    }
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return written;
+  }
+
+  private Profile read(String username)
+  {
+    try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file(username))))) {
+      if(in.readInt() != MAGIC)
+        throw new IOException("Not a player profile");
+      int version = in.readByte();
+      if(version < 1 || version > VERSION)
+        throw new IOException("Unsupported profile version " + version);
+      String name = in.readUTF();
+      int mudNo = in.readInt();
+      String location = in.readUTF();
+      List<String> inventory = new ArrayList<>();
+      for(int n = in.readInt(); n > 0; n--)
+        inventory.add(in.readUTF());
+      long changes = (version >= 2) ? in.readLong() : 0;
+      return new Profile(name, inventory, mudNo, location.isEmpty() ? null : location, changes);
+    }
+    catch(NoSuchFileException e) { // New player.
+      return null;
+    }
+    catch(IOException e) {
+      System.err.println(ColourPrinter.red("IOException loading " + username + ":"));
+      System.err.println(ColourPrinter.red(e.getMessage()));
+      return null;
+    }
+  }
+}
@@ -0,0 +1,352 @@
+package src;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* The binary protocol spoken between a client and the server over a
+   single socket, as an alternative to RMI (see SocketServer and
+   ServerConnection). Both ends can call the other: the client calls the
+   MUDServerInterface methods, and the server calls the PlayerInterface
+   methods back over the same connection.
+
+   Every frame is
+     int      length of the rest of the frame
+     byte     kind: CALL, or REPLY or FAILURE to an earlier call
+     int      call id, matching a REPLY to its CALL; 0 for a CALL that
+              doesn't want a reply
+     byte     operation (CALL only)
+     ...      arguments or result
+   Numbers are big-endian, and strings are their UTF-8 length (an int)
+   and bytes. Lengths are checked against the frame they came in, so a bad
+   frame fails the call rather than the reader. */
+class Protocol
+{
+  public static final int MAX_FRAME = 1 << 20;
+
+  // Kinds of frame.
+  public static final byte CALL = 1;
+  public static final byte REPLY = 2;
+  public static final byte FAILURE = 3; // Followed by a message.
+
+  // Calls from the client to the server (MUDServerInterface).
+  public static final byte JOIN_SERVER = 1;
+  public static final byte JOIN_MUD = 2;
+  public static final byte MAKE_MOVE = 3;
+  public static final byte DISCONNECT = 4;
+
+  // Calls from the server to the client (PlayerInterface).
+  public static final byte INVENTORY = 20;
+  public static final byte USERNAME = 21;
+  public static final byte ADD_INVENTORY = 22;
+  public static final byte REMOVE_INVENTORY = 23;
+  public static final byte CLEAR_INVENTORY = 24;
+  public static final byte CUR_LOCATION = 25;
+  public static final byte STATUS = 26;
+  public static final byte SET_STATUS = 27;
+  public static final byte SET_LOCATION = 28;
+  public static final byte PRINT_OUT = 29;
+  public static final byte PRINT_INLINE = 30;
+  public static final byte CLEAR_OUTPUT = 31;
+  public static final byte PRINT_MESSAGES = 32;
+  public static final byte SHOW_VIEW = 33;
+  public static final byte PROMPT_MUD = 34;
+  public static final byte PROMPT_CONFIG = 35;
+  public static final byte SHOW_ROOM = 36;
+  public static final byte UPDATE_ROOM = 37;
+
+  /* Builds one frame in a growing buffer. */
+  public static final class FrameWriter
+  {
+    private byte[] buf = new byte[64];
+    private int size = 4; // Room for the length.
+
+    public FrameWriter(byte kind, int id)
+    {
+      putByte(kind);
+      putInt(id);
+    }
+
+    /* Starts a CALL frame. */
+    public static FrameWriter call(int id, byte op)
+    {
+      return new FrameWriter(CALL, id).putByte(op);
+    }
+
+    public FrameWriter putByte(int b)
+    {
+      ensure(1);
+      buf[size++] = (byte) b;
+      return this;
+    }
+
+    public FrameWriter putBoolean(boolean b)
+    {
+      return putByte(b ? 1 : 0);
+    }
+
+    public FrameWriter putInt(int n)
+    {
+      ensure(4);
+      ByteBuffer.wrap(buf, size, 4).putInt(n);
+      size += 4;
+      return this;
+    }
+
+    public FrameWriter putLong(long n)
+    {
+      ensure(8);
+      ByteBuffer.wrap(buf, size, 8).putLong(n);
+      size += 8;
+      return this;
+    }
+
+    /* Writes a string, which may be null. */
+    public FrameWriter putString(String s)
+    {
+      if(s == null)
+        return putInt(-1);
+      byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+      putInt(utf8.length);
+      ensure(utf8.length);
+      System.arraycopy(utf8, 0, buf, size, utf8.length);
+      size += utf8.length;
+      return this;
+    }
+
+    public FrameWriter putStrings(List<String> strings)
+    {
+      putInt(strings.size());
+      for(String s : strings)
+        putString(s);
+      return this;
+    }
+
+    public FrameWriter putMessages(PlayerMessage[] msgs)
+    {
+      putInt(msgs.length);
+      for(PlayerMessage msg : msgs) {
+        putString(msg.sender);
+        putString(msg.text);
+        putByte(msg.type.ordinal());
+        putLong(msg.timestamp);
+      }
+      return this;
+    }
+
+    public FrameWriter putRoom(RoomView room)
+    {
+      return putString(room.exits).putStrings(room.things).putStrings(room.players);
+    }
+
+    public FrameWriter putChanges(RoomView.Change[] changes)
+    {
+      putInt(changes.length);
+      for(RoomView.Change c : changes) {
+        putByte(c.op);
+        putString(c.name);
+      }
+      return this;
+    }
+
+    /* The finished frame, ready to be written. */
+    public ByteBuffer frame()
+    {
+      ByteBuffer frame = ByteBuffer.wrap(buf, 0, size);
+      frame.putInt(0, size - 4);
+      return frame;
+    }
+
+    private void ensure(int n)
+    {
+      if(size + n > buf.length)
+        buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + n));
+    }
+  }
+
+  /* Reads the contents of one frame (after its length). */
+  public static final class FrameReader
+  {
+    public final byte kind;
+    public final int id;
+    public final byte op; // CALL only.
+    private final ByteBuffer in;
+
+    public FrameReader(ByteBuffer _in)
+    throws RemoteException
+    {
+      in = _in;
+      try {
+        kind = in.get();
+        id = in.getInt();
+        op = (kind == CALL) ? in.get() : 0;
+      }
+      catch(BufferUnderflowException e) {
+        throw new RemoteException("Frame too short");
+      }
+    }
+
+    public byte getByte()
+    {
+      return in.get();
+    }
+
+    public boolean getBoolean()
+    {
+      return in.get() != 0;
+    }
+
+    public int getInt()
+    {
+      return in.getInt();
+    }
+
+    public long getLong()
+    {
+      return in.getLong();
+    }
+
+    public String getString()
+    throws RemoteException
+    {
+      int length = in.getInt();
+      if(length == -1)
+        return null;
+      if(length < 0 || length > in.remaining())
+        throw new RemoteException("Bad string length " + length);
+      byte[] utf8 = new byte[length];
+      in.get(utf8);
+      return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    public Vector<String> getStrings()
+    throws RemoteException
+    {
+      int n = getCount(4);
+      Vector<String> strings = new Vector<>(n);
+      for(int i = 0; i < n; i++)
+        strings.add(getString());
+      return strings;
+    }
+
+    public PlayerMessage[] getMessages()
+    throws RemoteException
+    {
+      PlayerMessage[] msgs = new PlayerMessage[getCount(17)];
+      PlayerMessage.MessageType[] types = PlayerMessage.MessageType.values();
+      for(int i = 0; i < msgs.length; i++)
+        msgs[i] = new PlayerMessage(getString(), getString(), getEnum(types), in.getLong());
+      return msgs;
+    }
+
+    public RoomView getRoom()
+    throws RemoteException
+    {
+      return new RoomView(getString(), getStrings(), getStrings());
+    }
+
+    public RoomView.Change[] getChanges()
+    throws RemoteException
+    {
+      RoomView.Change[] changes = new RoomView.Change[getCount(5)];
+      for(int i = 0; i < changes.length; i++)
+        changes[i] = new RoomView.Change(in.get(), getString());
+      return changes;
+    }
+
+    /* Reads an enum sent as its ordinal (one of the given values). */
+    public <E extends Enum<E>> E getEnum(E[] values)
+    throws RemoteException
+    {
+      int ordinal = in.get();
+      if(ordinal < 0 || ordinal >= values.length)
+        throw new RemoteException("Bad value " + ordinal);
+      return values[ordinal];
+    }
+
+    /* Reads the length of a list whose entries take at least the given
+       number of bytes each, checking that they can fit in the frame. */
+    private int getCount(int minSize)
+    throws RemoteException
+    {
+      int n = in.getInt();
+      if(n < 0 || n > in.remaining() / minSize)
+        throw new RemoteException("Bad list length " + n);
+      return n;
+    }
+  }
+
+  /* The calls one end of a connection is waiting on a reply to. */
+  public static final class PendingCalls
+  {
+    private final AtomicInteger ids = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, CompletableFuture<FrameReader>> pending = new ConcurrentHashMap<>();
+    private volatile String closed; // Why the connection closed, once it has.
+
+    /* Starts a call, returning its id. Wait for the reply with await(). */
+    public int start()
+    throws RemoteException
+    {
+      int id;
+      do {
+        id = ids.incrementAndGet();
+      } while(id == 0);
+      pending.put(id, new CompletableFuture<>());
+      if(closed != null) { // Closed before the call could be sent.
+        pending.remove(id);
+        throw new RemoteException(closed);
+      }
+      return id;
+    }
+
+    /* Waits for the reply to a call. */
+    public FrameReader await(int id)
+    throws RemoteException
+    {
+      CompletableFuture<FrameReader> reply = pending.get(id);
+      try {
+        FrameReader r = reply.get();
+        if(r.kind == FAILURE)
+          throw new RemoteException(r.getString());
+        return r;
+      }
+      catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RemoteException("Interrupted while waiting for a reply", e);
+      }
+      catch(ExecutionException e) {
+        throw new RemoteException(e.getCause().getMessage());
+      }
+      catch(BufferUnderflowException e) {
+        throw new RemoteException("Reply too short");
+      }
+      finally {
+        pending.remove(id);
+      }
+    }
+
+    /* Hands a REPLY or FAILURE frame to the call waiting for it. */
+    public void complete(FrameReader reply)
+    {
+      CompletableFuture<FrameReader> call = pending.get(reply.id);
+      if(call != null)
+        call.complete(reply);
+    }
+
+    /* Fails every call still waiting, and any made from now on. */
+    public void close(String reason)
+    {
+      closed = reason;
+      for(CompletableFuture<FrameReader> call : pending.values())
+        call.completeExceptionally(new RemoteException(reason));
+    }
+  }
+}
@@ -0,0 +1,195 @@
+/***********************************************************************
+ * cs3524.solutions.mud.Room
+ ***********************************************************************/
+
+package src;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Vector;
+import java.util.Iterator;
+
+// The changing state of one location in one MUD: the things and players
+// there. The message and routes come from the MUD's template, which is
+// shared by every MUD built from the same files (see MUDTemplate).
+class Room
+{
+    public String name;             // Vertex name
+    public String exitsView;        // Message and exits, from the template.
+    public List<String> things;     // The things (e.g. items) at this location.
+    public List<String> players;    // The players at this location (not saved with the MUD).
+    private Map<String,Integer> thingCounts; // How many of each thing are here, by lower-case name.
+
+    // The description of the room without any players in it is cached, and
+    // only rebuilt when the things here change. The message and exits are
+    // fixed, and that part is built once by the template.
+    private int version = 0;                 // Bumped whenever things change.
+    private String cachedView;               // Description without players...
+    private int cachedVersion;               // ...as of this version.
+
+    // Starts with the things the location was loaded with.
+    public Room( String nm, String exits, List<String> initialThings )
+    {
+        name = nm;
+        exitsView = exits;
+        things = new Vector<String>( initialThings ); // Synchronised
+        players = new Vector<String>();
+        thingCounts = new HashMap<String,Integer>();
+        recount();
+    }
+
+    /**
+     * Add a thing to this location.
+     */
+    public synchronized void addThing( String thing )
+    {
+        things.add( thing );
+        thingCounts.merge( thing.toLowerCase(), 1, Integer::sum );
+        version++;
+    }
+
+    /**
+     * Replace everything at this location, e.g. when loading a saved MUD.
+     */
+    public synchronized void setThings( List<String> newThings )
+    {
+        things.clear();
+        things.addAll( newThings );
+        recount();
+        version++;
+    }
+
+    /**
+     * Remove a thing from this location. Returns false if it wasn't here.
+     */
+    public synchronized boolean delThing( String thing )
+    {
+        if (!things.remove( thing ))
+            return false;
+        uncount( thing );
+        version++;
+        return true;
+    }
+
+    /**
+     * Checks if there is a thing with this name here, ignoring case.
+     */
+    public synchronized boolean hasThing( String thing )
+    {
+        return thingCounts.containsKey( thing.toLowerCase() );
+    }
+
+    /**
+     * Remove a thing with this name (ignoring case) if there is one here,
+     * in one step so that two players can't both take it. Returns the
+     * thing's name as it was written here, or null if there wasn't one.
+     */
+    public synchronized String takeThing( String thing )
+    {
+        if (!hasThing( thing ))
+            return null;
+        for (Iterator<String> iter = things.iterator(); iter.hasNext(); ) {
+            String t = iter.next();
+            if (t.equalsIgnoreCase( thing )) {
+                iter.remove();
+                uncount( t );
+                version++;
+                return t;
+            }
+        }
+        return null;
+    }
+
+    public synchronized void addPlayer( String player )
+    {
+        players.add( player );
+    }
+
+    public synchronized void delPlayer( String player )
+    {
+        players.remove( player );
+    }
+
+    /**
+     * Describe this location as seen by one player: everything here
+     * except the viewer themselves and (if not null) one other player
+     * who is about to leave.
+     */
+    public synchronized String describe( String viewer, String hidden )
+    {
+        StringBuilder others = null;
+        for (String player : players) {
+            if (player.equals( viewer ) || player.equals( hidden ))
+                continue;
+            if (others == null)
+                others = new StringBuilder();
+            others.append( player ).append( " " );
+        }
+        String base = view();
+        if (others == null)
+            return base;
+
+        // Players go on the end of the "You can see" line.
+        StringBuilder summary = new StringBuilder( base.length() + others.length() + 16 );
+        summary.append( base, 0, base.length() - 2 );
+        if (things.isEmpty())
+            summary.append( "You can see: " );
+        summary.append( others ).append( "\n\n" );
+        return summary.toString();
+    }
+
+    /**
+     * The same as describe(), but as a RoomView, which the player's
+     * client can keep and update.
+     */
+    public synchronized RoomView view( String viewer, String hidden )
+    {
+        List<String> others = new Vector<String>();
+        for (String player : players) {
+            if (!player.equals( viewer ) && !player.equals( hidden ))
+                others.add( player );
+        }
+        return new RoomView( exitsView, things, others );
+    }
+
+    public String toString()
+    {
+        return describe( null, null );
+    }
+
+    /**
+     * The (cached) description of this location, ignoring any players.
+     */
+    private String view()
+    {
+        if (cachedView != null && cachedVersion == version)
+            return cachedView;
+
+        StringBuilder summary = new StringBuilder( exitsView );
+        Iterator<String> iter = things.iterator();
+        if (iter.hasNext()) {
+            summary.append( "You can see: " );
+            do {
+                summary.append( iter.next() ).append( " " );
+            } while (iter.hasNext());
+        }
+        summary.append( "\n\n" );
+
+        cachedView = summary.toString();
+        cachedVersion = version;
+        return cachedView;
+    }
+
+    private void recount()
+    {
+        thingCounts.clear();
+        for (String thing : things)
+            thingCounts.merge( thing.toLowerCase(), 1, Integer::sum );
+    }
+
+    private void uncount( String thing )
+    {
+        thingCounts.computeIfPresent( thing.toLowerCase(), (k, n) -> (n > 1) ? n - 1 : null );
+    }
+}
@@ -0,0 +1,148 @@
+package src;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/* What one player sees of their location: its message and exits, the
+   things there, and the other players there. The server sends a client
+   a whole RoomView when they arrive somewhere, and from then on only the
+   changes to it (see changesTo()); the client keeps the last one and
+   applies the changes to it, so it can redraw the screen itself. Views
+   never change once made. */
+public class RoomView implements Serializable
+{
+  private static final long serialVersionUID = 1L;
+
+  /* One change to a view. */
+  public static final class Change implements Serializable
+  {
+    private static final long serialVersionUID = 1L;
+
+    public static final byte ENTERED = 1;
+    public static final byte LEFT = 2;
+    public static final byte ITEM_ADDED = 3;
+    public static final byte ITEM_REMOVED = 4;
+
+    public final byte op;
+    public final String name; // The player or thing.
+
+    public Change(byte _op, String _name)
+    {
+      op = _op;
+      name = _name;
+    }
+  }
+
+  public static final Change[] NO_CHANGES = new Change[0];
+
+  public final String exits;          // Message and exits, as in MUDTemplate.
+  public final List<String> things;
+  public final List<String> players;  // Not including the viewer.
+
+  public RoomView(String _exits, List<String> _things, List<String> _players)
+  {
+    exits = _exits;
+    things = Collections.unmodifiableList(new ArrayList<>(_things));
+    players = Collections.unmodifiableList(new ArrayList<>(_players));
+  }
+
+  /* The changes that turn this view into another one, or null if the other
+     view is of somewhere else and has to be sent whole. Things and players
+     that leave are taken out of the lists, and those that arrive are added
+     on the end, just as Room does, so the result is checked against the
+     other view before the changes are used. */
+  public Change[] changesTo(RoomView next)
+  {
+    if(!exits.equals(next.exits))
+      return null;
+    List<Change> changes = new ArrayList<>();
+    diff(things, next.things, Change.ITEM_REMOVED, Change.ITEM_ADDED, changes);
+    diff(players, next.players, Change.LEFT, Change.ENTERED, changes);
+    if(changes.isEmpty())
+      return NO_CHANGES;
+    Change[] result = changes.toArray(NO_CHANGES);
+    RoomView applied = apply(result);
+    if(!applied.things.equals(next.things) || !applied.players.equals(next.players))
+      return null; // Reordered some other way.
+    return result;
+  }
+
+  /* Returns this view with the given changes made to it. */
+  public RoomView apply(Change[] changes)
+  {
+    if(changes.length == 0)
+      return this;
+    List<String> newThings = new ArrayList<>(things);
+    List<String> newPlayers = new ArrayList<>(players);
+    for(Change c : changes) {
+      switch(c.op) {
+        case Change.ENTERED:      newPlayers.add(c.name); break;
+        case Change.LEFT:         newPlayers.remove(c.name); break;
+        case Change.ITEM_ADDED:   newThings.add(c.name); break;
+        case Change.ITEM_REMOVED: newThings.remove(c.name); break;
+      }
+    }
+    return new RoomView(exits, newThings, newPlayers);
+  }
+
+  /* The text of the view, the same as Room.describe(). */
+  public String render()
+  {
+    StringBuilder summary = new StringBuilder();
+    render(summary);
+    return summary.toString();
+  }
+
+  /* Adds the text of the view to some output, e.g. the client's screen
+     (see ColourPrinter.StyledText), without making a string of it. */
+  public void render(Appendable out)
+  {
+    try {
+      out.append(exits);
+      if(!things.isEmpty() || !players.isEmpty()) {
+        out.append("You can see: ");
+        for(int i = 0; i < things.size(); i++)
+          out.append(things.get(i)).append(" ");
+        for(int i = 0; i < players.size(); i++)
+          out.append(players.get(i)).append(" ");
+      }
+      out.append("\n\n");
+    }
+    catch(IOException e) {
+      throw new UncheckedIOException(e); // Can't happen with a buffer.
+    }
+  }
+
+  /* Adds the changes that turn one list into another: first the removals
+     (of names there are fewer of), then the additions, in order. */
+  private static void diff(List<String> from, List<String> to, byte removed, byte added, List<Change> changes)
+  {
+    if(from.equals(to))
+      return;
+    Map<String,Integer> counts = new HashMap<>();
+    for(String name : to)
+      counts.merge(name, 1, Integer::sum);
+    List<String> kept = new ArrayList<>();
+    for(String name : from) {
+      Integer n = counts.get(name);
+      if(n == null) {
+        changes.add(new Change(removed, name));
+        continue;
+      }
+      kept.add(name);
+      if(n == 1)
+        counts.remove(name);
+      else
+        counts.put(name, n - 1);
+    }
+    // Whatever is left in counts is new; the new ones come after the kept ones.
+    for(int i = kept.size(); i < to.size(); i++)
+      changes.add(new Change(added, to.get(i)));
+  }
+}
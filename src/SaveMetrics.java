@@ -0,0 +1,46 @@
+package src;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Counts how much saving is costing: how many saves were made (and how
+   many were skipped because nothing had changed), how many bytes they
+   wrote, and how long they took. Safe to update from any thread. */
+class SaveMetrics
+{
+  private final String name;
+  private final AtomicLong saves = new AtomicLong();
+  private final AtomicLong skipped = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+  private final AtomicLong totalNanos = new AtomicLong();
+  private final AtomicLong maxNanos = new AtomicLong();
+  private volatile long lastNanos;
+
+  public SaveMetrics(String _name)
+  {
+    name = _name;
+  }
+
+  /* Records a save that wrote the given number of bytes. */
+  public void saved(long written, long nanos)
+  {
+    saves.incrementAndGet();
+    bytes.addAndGet(written);
+    totalNanos.addAndGet(nanos);
+    maxNanos.accumulateAndGet(nanos, Math::max);
+    lastNanos = nanos;
+  }
+
+  /* Records a save that wasn't needed. */
+  public void skipped()
+  {
+    skipped.incrementAndGet();
+  }
+
+  public String toString()
+  {
+    long n = saves.get();
+    return String.format("%s: %d saved, %d skipped, %d bytes written, latency last %.1f ms, mean %.1f ms, max %.1f ms",
+                         name, n, skipped.get(), bytes.get(), lastNanos / 1e6,
+                         (n > 0) ? totalNanos.get() / 1e6 / n : 0.0, maxNanos.get() / 1e6);
+  }
+}
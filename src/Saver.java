@@ -1,135 +1,104 @@
 package src;
 
-import java.io.FileNotFoundException;
-import java.io.File;
-import java.io.ObjectOutputStream;
-import java.io.FileOutputStream;
-import java.io.ObjectInputStream;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.util.ArrayDeque;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
 
 public class Saver {
 
+  public static final Path SAVES = Paths.get(System.getProperty("mud.saveDir", "saves")); // Everything the server saves.
+  private static final Path MUD_SAVES = SAVES.resolve("muds"); // MUD snapshots and logs.
+
   public Saver()
   {
   }
 
-  /* Saves the player's current state (position, username, inventory) to a file.
-     This method can be run inside a thread when the user quits/aborts, or in
-     the event the server crashes/aborts. */
-  public static void saveState(Player player)
+  /* Saves the mud's current state (items etc.) to a snapshot file (see
+     Snapshot), and deletes the log files it covers. The logs also hold
+     changes to players' inventories, so savePlayers is run before they
+     are deleted, to put those in the PlayerStore. Nothing is saved if no
+     items have moved since the last save. This method is run every so
+     often in the background, and when the server gets shut down. Returns
+     the number of bytes written, or -1 if nothing was saved. */
+  public static synchronized long saveState(MUD mud, int mudNo, Runnable savePlayers)
   {
+    if(!mud.isDirty())
+      return -1;
     try {
-      File savefile = new File("saves/players/" + player.username() + ".sav");
-      FileOutputStream fout = new FileOutputStream(savefile);
-      ObjectOutputStream oos = new ObjectOutputStream(fout);
-      oos.writeObject(player);
-      System.out.println(ColourPrinter.green("Game saved."));
-    }
-    catch(FileNotFoundException e) {
-      System.err.println(ColourPrinter.red("FileNotFoundException in saveState():"));
-      System.err.println(ColourPrinter.red(e.getMessage()));
+      // The log is moved on to a new file and the changed rooms collected
+      // together, on the MUD's queue, so that no change can fall between
+      // the two. Both are quick; the snapshot is encoded and written
+      // afterwards, while the MUD carries on running commands.
+      WriteAheadLog log = mud.log();
+      long[] covered = { 0 };
+      Map<String,List<String>> changed = mud.commands().call(() -> {
+        if(log != null)
+          covered[0] = log.rotate();
+        return mud.changedThings();
+      });
+      long written = 0;
+      if(log != null)
+        written += log.flush(); // The rest of the old file, before it is deleted.
+      byte[] data = Snapshot.encode(mud.files(), changed, covered[0]);
+      Snapshot.write(data, savefile(mudNo));
+      written += data.length;
+      if(log != null) {
+        savePlayers.run();
+        log.deleteUpTo(covered[0]);
+      }
+      System.out.println(ColourPrinter.green("MUD " + mudNo + " saved."));
+      return written;
     }
     catch(IOException e) {
       System.err.println(ColourPrinter.red("IOException in saveState():"));
       System.err.println(ColourPrinter.red(e.getMessage()));
+      return -1;
     }
   }
 
-  /* Loads the player's current state (position, username, inventory) from a file,
-     provided one exists. Creates a new BufferedReader for the user as these
-     are not serialized. */
-  public static Player loadState(Player player)
+  /* Loads the mud's current state (items etc.) from its latest snapshot,
+     provided one exists, or else creates it from its files. Changes made
+     since the snapshot are then replayed from the MUD's log (with any
+     inventories in it going to the PlayerStore), and a new log is started
+     for further changes. */
+  public static MUD loadState(int mudNo, String edgesfile, String messagesfile, String thingsfile, PlayerStore players)
   {
+    MUD mud = null;
+    long covered = 0;
     try {
-      File savefile = new File("saves/players/" + player.username() + ".sav");
-      if(savefile.exists() && !savefile.isDirectory()) {
-        FileInputStream fin = new FileInputStream(savefile);
-        ObjectInputStream ois = new ObjectInputStream(fin);
-        player = (Player) ois.readObject();
-        player.inputStream = new BufferedReader(new InputStreamReader(System.in));
-        player.messageBuffer = new ArrayDeque<>();
-        System.out.println(ColourPrinter.green("Save game loaded."));
-        return player;
-      }
-      else {
-        return null;
+      Path savefile = savefile(mudNo);
+      if(Files.isRegularFile(savefile)) {
+        Snapshot snapshot = Snapshot.read(savefile);
+        mud = snapshot.mud;
+        covered = snapshot.logGeneration;
+        System.out.println(ColourPrinter.green("MUD save loaded."));
       }
     }
-    catch(FileNotFoundException e) {
-      System.err.println(ColourPrinter.red("FileNotFoundException in loadState():"));
-      System.err.println(ColourPrinter.red(e.getMessage()));
-      return null;
-    }
     catch(IOException e) {
       System.err.println(ColourPrinter.red("IOException in loadState():"));
       System.err.println(ColourPrinter.red(e.getMessage()));
-      return null;
     }
-    catch(ClassNotFoundException e) {
-      System.err.println(ColourPrinter.red("ClassNotFoundException in loadState():"));
-      System.err.println(ColourPrinter.red(e.getMessage()));
-      return null;
+    if(mud == null) {
+      System.out.println("No save file found for MUD " + mudNo + ". Creating new MUD...");
+      mud = new MUD(edgesfile, messagesfile, thingsfile);
     }
-  }
 
-  /* Saves the mud's current state (items etc.) to a file.
-     This method can be run inside a thread in
-     the event the server crashes/aborts. */
-  public static void saveState(MUD mud, int mudNo)
-  {
     try {
-      File savefile = new File("saves/muds/" + "mud_" + mudNo + ".msav");
-      FileOutputStream fout = new FileOutputStream(savefile);
-      ObjectOutputStream oos = new ObjectOutputStream(fout);
-      oos.writeObject(mud);
-      System.out.println(ColourPrinter.green("MUD " + mudNo + " saved."));
-    }
-    catch(FileNotFoundException e) {
-      System.err.println(ColourPrinter.red("FileNotFoundException in saveState():"));
-      System.err.println(ColourPrinter.red(e.getMessage()));
+      long last = WriteAheadLog.replay(MUD_SAVES, "mud_" + mudNo, covered, mud, players);
+      mud.setLog(new WriteAheadLog(MUD_SAVES, "mud_" + mudNo, last + 1));
     }
     catch(IOException e) {
-      System.err.println(ColourPrinter.red("IOException in saveState():"));
+      System.err.println(ColourPrinter.red("IOException in loadState():"));
       System.err.println(ColourPrinter.red(e.getMessage()));
     }
+    return mud;
   }
 
-  /* Loads the mud's current state (position, username, inventory) from a file,
-     provided one exists. */
-  public static MUD loadState(int mudNo)
+  private static Path savefile(int mudNo)
   {
-    try {
-      MUD mud;
-      File savefile = new File("saves/muds/" + "mud_" + mudNo + ".msav");
-      if(savefile.exists() && !savefile.isDirectory()) {
-        FileInputStream fin = new FileInputStream(savefile);
-        ObjectInputStream ois = new ObjectInputStream(fin);
-        mud = (MUD) ois.readObject();
-        System.out.println(ColourPrinter.green("MUD save loaded."));
-        return mud;
-      }
-      else {
-        return null;
-      }
-    }
-    catch(FileNotFoundException e) {
-      System.err.println(ColourPrinter.red("FileNotFoundException in loadState():"));
-      System.err.println(ColourPrinter.red(e.getMessage()));
-      return null;
-    }
-    catch(IOException e) {
-      System.err.println(ColourPrinter.red("IOException in loadState():"));
-      System.err.println(ColourPrinter.red(e.getMessage()));
-      return null;
-    }
-    catch(ClassNotFoundException e) {
-      System.err.println(ColourPrinter.red("ClassNotFoundException in loadState():"));
-      System.err.println(ColourPrinter.red(e.getMessage()));
-      return null;
-    }
+    return MUD_SAVES.resolve("mud_" + mudNo + ".msav");
   }
 }
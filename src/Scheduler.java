@@ -0,0 +1,87 @@
+package src;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/* Runs delayed effects (such as deferred view refreshes) on a timer thread,
+   so that commands never have to sleep on an RMI thread while they wait. */
+class Scheduler
+{
+  private final ScheduledExecutorService timer;
+  private final ConcurrentHashMap<Object, Keyed> pending; // Keyed tasks that haven't run yet.
+
+  /* A task scheduled by afterOnce(), which takes itself out of pending
+     when it runs (unless it has been replaced already). */
+  private class Keyed
+  implements Runnable
+  {
+    private final Object key;
+    private final Runnable task;
+    private ScheduledFuture<?> future; // Set inside pending.compute(), before anyone else can see it.
+
+    private Keyed(Object _key, Runnable _task)
+    {
+      key = _key;
+      task = _task;
+    }
+
+    public void run()
+    {
+      pending.remove(key, this);
+      Scheduler.this.run(task);
+    }
+  }
+
+  public Scheduler()
+  {
+    timer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "mud-scheduler");
+      t.setDaemon(true);
+      return t;
+    });
+    pending = new ConcurrentHashMap<>();
+  }
+
+  /* Runs a task after the given delay (in milliseconds). */
+  public ScheduledFuture<?> after(long delay, Runnable task)
+  {
+    return timer.schedule(() -> run(task), delay, TimeUnit.MILLISECONDS);
+  }
+
+  /* Runs a task after the given delay, replacing any task with the same key
+     that is still waiting. Repeated requests (e.g. to refresh one player's
+     view) therefore only run once, after the last of them. */
+  public void afterOnce(Object key, long delay, Runnable task)
+  {
+    pending.compute(key, (k, old) -> {
+      if(old != null)
+        old.future.cancel(false);
+      Keyed next = new Keyed(key, task);
+      next.future = timer.schedule(next, delay, TimeUnit.MILLISECONDS);
+      return next;
+    });
+  }
+
+  /* Cancels a keyed task if it hasn't run yet. */
+  public void cancel(Object key)
+  {
+    Keyed task = pending.remove(key);
+    if(task != null)
+      task.future.cancel(false);
+  }
+
+  /* Exceptions would otherwise be silently kept in the task's future. */
+  private void run(Runnable task)
+  {
+    try {
+      task.run();
+    }
+    catch(RuntimeException e) {
+      System.err.println(ColourPrinter.red("Exception in scheduled task:"));
+      System.err.println(ColourPrinter.red(e.toString()));
+    }
+  }
+}
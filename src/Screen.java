@@ -0,0 +1,61 @@
+package src;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/* Draws the client's screen using ANSI control sequences, instead of
+   running the `clear` command for every redraw.
+
+   A redraw is built up off screen, in a frame buffer that is reused from
+   one redraw to the next (see ColourPrinter.StyledText), starting with
+   the sequences that clear the screen. The whole frame is then written
+   to the terminal in one go, so the user never sees a half-drawn screen,
+   and a redraw takes a single write rather than a process. If colour is
+   off (e.g. the output isn't a terminal), the control sequences are left
+   out too.
+
+   Only one frame can be drawn at a time, as there is only one buffer; the
+   caller (Player, whose drawing methods are synchronized) makes sure of
+   that. */
+class Screen
+{
+  // Moves the cursor to the top left, and clears the screen and the
+  // scrollback, the same as the `clear` command.
+  public static final ColourPrinter.Span CLEAR = new ColourPrinter.Span("\u001B[H\u001B[2J\u001B[3J");
+
+  private final FileOutputStream out = new FileOutputStream(FileDescriptor.out);
+  private final ColourPrinter.StyledText frame = new ColourPrinter.StyledText(4096); // One frame at a time (see above).
+
+  /* Starts a new frame, and returns the buffer to draw it in. */
+  public synchronized ColourPrinter.StyledText begin()
+  {
+    return frame.reset().append(CLEAR);
+  }
+
+  /* Writes the frame started by begin() to the terminal. */
+  public synchronized void show()
+  {
+    try {
+      System.out.flush(); // Anything printed before the frame goes first.
+      frame.writeTo(out);
+    }
+    catch(IOException e) {
+      System.err.println(ColourPrinter.red("IOException in Screen.show():"));
+      System.err.println(ColourPrinter.red(e.getMessage()));
+    }
+  }
+
+  /* Clears the screen. */
+  public synchronized void clear()
+  {
+    try {
+      System.out.flush();
+      CLEAR.writeTo(out);
+    }
+    catch(IOException e) {
+      System.err.println(ColourPrinter.red("IOException in Screen.clear():"));
+      System.err.println(ColourPrinter.red(e.getMessage()));
+    }
+  }
+}
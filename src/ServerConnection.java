@@ -0,0 +1,211 @@
+package src;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/* A client's connection to a SocketServer, used in place of the RMI stub
+   for MUDServerInterface. The player argument of each method is ignored:
+   the connection itself stands for the player on the server.
+
+   The server calls the player's PlayerInterface methods back over the
+   same connection, so the client doesn't need to export anything or
+   accept connections. One thread reads every frame from the server. It
+   runs calls that return nothing (screen updates) itself, in the order
+   they were sent, and hands the ones that wait for an answer (e.g.
+   choosing a MUD) to another thread, so that updates keep arriving while
+   the user makes up their mind. */
+class ServerConnection implements MUDServerInterface
+{
+  private final SocketChannel channel;
+  private final PlayerInterface player;
+  private final Protocol.PendingCalls calls = new Protocol.PendingCalls();
+  private final ExecutorService answers = Executors.newCachedThreadPool(r -> {
+    Thread t = new Thread(r, "mud-connection-calls");
+    t.setDaemon(true);
+    return t;
+  });
+
+  /* Connects to the server, and starts handling its calls to the player. */
+  public ServerConnection(String host, int port, PlayerInterface _player)
+  throws IOException
+  {
+    player = _player;
+    channel = SocketChannel.open(new InetSocketAddress(host, port));
+    channel.socket().setTcpNoDelay(true);
+    Thread reader = new Thread(this::readFrames, "mud-connection");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  public boolean joinServer(PlayerInterface p)
+  throws RemoteException
+  {
+    int id = calls.start();
+    send(Protocol.FrameWriter.call(id, Protocol.JOIN_SERVER));
+    return calls.await(id).getBoolean();
+  }
+
+  public boolean joinMUD(int mudNo, PlayerInterface p)
+  throws RemoteException
+  {
+    int id = calls.start();
+    send(Protocol.FrameWriter.call(id, Protocol.JOIN_MUD).putInt(mudNo));
+    return calls.await(id).getBoolean();
+  }
+
+  public void makeMove(PlayerInterface pl, String dir)
+  throws RemoteException
+  {
+    int id = calls.start();
+    send(Protocol.FrameWriter.call(id, Protocol.MAKE_MOVE).putString(dir));
+    calls.await(id);
+  }
+
+  public void playerDisconnect(PlayerInterface pl)
+  throws RemoteException
+  {
+    int id = calls.start();
+    send(Protocol.FrameWriter.call(id, Protocol.DISCONNECT));
+    calls.await(id);
+  }
+
+  /* Closes the connection. The server treats this as the player quitting. */
+  public void close()
+  {
+    try {
+      channel.close();
+    }
+    catch(IOException e) {
+      // Closing anyway.
+    }
+  }
+
+  private void send(Protocol.FrameWriter frame)
+  throws RemoteException
+  {
+    ByteBuffer buf = frame.frame();
+    try {
+      synchronized(channel) {
+        while(buf.hasRemaining())
+          channel.write(buf);
+      }
+    }
+    catch(IOException e) {
+      throw new RemoteException("Lost connection to server", e);
+    }
+  }
+
+  /* Reads frames from the server until the connection closes. */
+  private void readFrames()
+  {
+    try(DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)))) {
+      while(true) {
+        int length = in.readInt();
+        if(length < 0 || length > Protocol.MAX_FRAME)
+          throw new IOException("Bad frame length " + length);
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        Protocol.FrameReader r = new Protocol.FrameReader(ByteBuffer.wrap(frame));
+        if(r.kind != Protocol.CALL)
+          calls.complete(r);
+        else if(r.id == 0)
+          answer(r);
+        else
+          answers.execute(() -> answer(r));
+      }
+    }
+    catch(EOFException e) {
+      calls.close("Server closed the connection");
+    }
+    catch(IOException e) {
+      calls.close("Lost connection to server: " + e.getMessage());
+    }
+  }
+
+  /* Makes a call from the server on the player, and replies if the server
+     is waiting for an answer. */
+  private void answer(Protocol.FrameReader call)
+  {
+    Protocol.FrameWriter reply = new Protocol.FrameWriter(Protocol.REPLY, call.id);
+    try {
+      switch(call.op) {
+        case Protocol.INVENTORY:
+          reply.putStrings(player.inventory());
+          break;
+        case Protocol.USERNAME:
+          reply.putString(player.username());
+          break;
+        case Protocol.ADD_INVENTORY:
+          player.addInventory(call.getString());
+          break;
+        case Protocol.REMOVE_INVENTORY:
+          player.removeInventory(call.getString());
+          break;
+        case Protocol.CLEAR_INVENTORY:
+          player.clearInventory();
+          break;
+        case Protocol.CUR_LOCATION:
+          reply.putString(player.curLocation());
+          break;
+        case Protocol.STATUS:
+          reply.putByte(player.status().ordinal());
+          break;
+        case Protocol.SET_STATUS:
+          player.setStatus(call.getEnum(PlayerState.values()));
+          break;
+        case Protocol.SET_LOCATION:
+          player.setLocation(call.getString());
+          break;
+        case Protocol.PRINT_OUT:
+          player.printOut(call.getString());
+          break;
+        case Protocol.PRINT_INLINE:
+          player.printOut(call.getString(), call.getBoolean());
+          break;
+        case Protocol.CLEAR_OUTPUT:
+          player.clearOutput();
+          break;
+        case Protocol.PRINT_MESSAGES:
+          player.printMessages();
+          break;
+        case Protocol.SHOW_VIEW:
+          player.showView(call.getString(), call.getMessages(), call.getBoolean());
+          break;
+        case Protocol.SHOW_ROOM:
+          player.showRoom(call.getRoom(), call.getMessages(), call.getBoolean());
+          break;
+        case Protocol.UPDATE_ROOM:
+          player.updateRoom(call.getChanges(), call.getMessages(), call.getBoolean());
+          break;
+        case Protocol.PROMPT_MUD:
+          reply.putString(player.promptMUD(call.getInt(), call.getInt()));
+          break;
+        case Protocol.PROMPT_CONFIG:
+          reply.putInt(player.promptConfig(call.getStrings().toArray(new String[0])));
+          break;
+        default:
+          throw new RemoteException("Unknown call " + call.op);
+      }
+    }
+    catch(RemoteException | RuntimeException e) {
+      reply = new Protocol.FrameWriter(Protocol.FAILURE, call.id).putString(e.toString());
+    }
+    try {
+      if(call.id != 0)
+        send(reply);
+    }
+    catch(RemoteException e) {
+      System.err.println(ColourPrinter.red("RemoteException in ServerConnection.answer():"));
+      System.err.println(ColourPrinter.red(e.getMessage()));
+    }
+  }
+}
@@ -0,0 +1,272 @@
+package src;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/* Saves and loads a MUD's state in a small binary format. Only what has
+   changed since the MUD was created from its files is saved (see
+   MUD.changedThings()); the rest comes from the files when it is loaded.
+
+   Format (all numbers are unsigned varints unless noted):
+     int      MAGIC
+     byte     VERSION
+     long     last write-ahead log generation included (version 2 on)
+     string   edges file, messages file, things file
+     n        string table size, followed by n strings
+     m        number of rooms, followed by m rooms:
+                location (string table index)
+                k, followed by k things (string table indexes)
+     long     CRC32 of everything above
+
+   Strings are stored as their UTF-8 length and bytes. Location and thing
+   names are only stored once, in the string table. */
+class Snapshot
+{
+  public static final int MAGIC = 0x4d554453; // "MUDS"
+  public static final int VERSION = 2;
+
+  public final MUD mud;
+  public final long logGeneration; // Log files up to this one are already included (see WriteAheadLog).
+
+  private Snapshot(MUD _mud, long _logGeneration)
+  {
+    mud = _mud;
+    logGeneration = _logGeneration;
+  }
+
+  /* Writes a MUD's state to a file. The file is written under a temporary
+     name and then moved into place, so a crash part way through never
+     leaves a half-written save behind. */
+  public static void write(MUD mud, long logGeneration, Path file)
+  throws IOException
+  {
+    write(encode(mud.files(), mud.changedThings(), logGeneration), file);
+  }
+
+  /* Writes an encoded snapshot to a file, as above. */
+  public static void write(byte[] data, Path file)
+  throws IOException
+  {
+    Files.createDirectories(file.toAbsolutePath().getParent());
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try {
+      try(FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                 StandardOpenOption.TRUNCATE_EXISTING)) {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while(buf.hasRemaining())
+          channel.write(buf);
+        channel.force(false); // Must be on disk before the log files it covers are deleted.
+      }
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  /* Loads a MUD from a file written by write(). The file is memory-mapped
+     rather than copied onto the heap. */
+  public static Snapshot read(Path file)
+  throws IOException
+  {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      return decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  /* Encodes the state of a MUD created from the given files, with the
+     given changed locations (see MUD.changedThings()). */
+  public static byte[] encode(String[] files, Map<String,List<String>> changed, long logGeneration)
+  throws IOException
+  {
+    Map<String,Integer> ids = new HashMap<>();
+    List<String> strings = new ArrayList<>();
+    for(Map.Entry<String,List<String>> room : changed.entrySet()) {
+      intern(room.getKey(), ids, strings);
+      for(String thing : room.getValue())
+        intern(thing, ids, strings);
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(MAGIC);
+    out.writeByte(VERSION);
+    out.writeLong(logGeneration);
+    for(String f : files)
+      writeString(out, f);
+    writeVarint(out, strings.size());
+    for(String s : strings)
+      writeString(out, s);
+    writeVarint(out, changed.size());
+    for(Map.Entry<String,List<String>> room : changed.entrySet()) {
+      writeVarint(out, ids.get(room.getKey()));
+      writeVarint(out, room.getValue().size());
+      for(String thing : room.getValue())
+        writeVarint(out, ids.get(thing));
+    }
+
+    CRC32 crc = new CRC32();
+    crc.update(bytes.toByteArray());
+    out.writeLong(crc.getValue());
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  public static Snapshot decode(ByteBuffer in)
+  throws IOException
+  {
+    if(in.remaining() < 13)
+      throw new IOException("Snapshot too short");
+    CRC32 crc = new CRC32();
+    ByteBuffer body = in.duplicate();
+    body.limit(in.limit() - 8);
+    crc.update(body);
+    if(crc.getValue() != in.getLong(in.limit() - 8))
+      throw new IOException("Snapshot checksum doesn't match");
+
+    try {
+      if(in.getInt() != MAGIC)
+        throw new IOException("Not a MUD snapshot");
+      int version = in.get();
+      if(version < 1 || version > VERSION)
+        throw new IOException("Unsupported snapshot version " + version);
+      long logGeneration = (version >= 2) ? in.getLong() : 0;
+      MUD mud = new MUD(readString(in), readString(in), readString(in));
+
+      String[] strings = new String[readVarint(in)];
+      for(int i = 0; i < strings.length; i++)
+        strings[i] = readString(in);
+      int rooms = readVarint(in);
+      for(int i = 0; i < rooms; i++) {
+        String loc = strings[readVarint(in)];
+        List<String> things = new ArrayList<>();
+        for(int k = readVarint(in); k > 0; k--)
+          things.add(strings[readVarint(in)]);
+        if(!mud.setThings(loc, things))
+          System.err.println(ColourPrinter.red("Skipping saved location " + loc + ", which is no longer in the MUD."));
+      }
+      return new Snapshot(mud, logGeneration);
+    }
+    catch(BufferUnderflowException | IndexOutOfBoundsException e) {
+      throw new IOException("Snapshot is corrupt", e);
+    }
+  }
+
+  /* Benchmark: compares the size and save/load times of a snapshot with
+     Java serialization of the same state.
+     Usage: java src.Snapshot <edgesfile> <messagesfile> <thingsfile> [rounds] */
+  public static void main(String[] args)
+  throws Exception
+  {
+    if(args.length < 3) {
+      System.err.println("Usage: java src.Snapshot <edgesfile> <messagesfile> <thingsfile> [rounds]");
+      return;
+    }
+    int rounds = (args.length > 3) ? Integer.parseInt(args[3]) : 20;
+    MUD mud = new MUD(args[0], args[1], args[2]);
+    // Change every location, so that all of them have to be saved.
+    for(String loc : mud.locations())
+      mud.addThing(loc, "pebble");
+    HashMap<String,List<String>> state = new HashMap<>(mud.changedThings());
+    Path snap = Files.createTempFile("mud", ".snap");
+    Path ser = Files.createTempFile("mud", ".ser");
+
+    long snapSave = 0, snapLoad = 0, serSave = 0, serLoad = 0;
+    for(int i = 0; i < rounds; i++) {
+      long t0 = System.nanoTime();
+      write(mud, 0, snap);
+      long t1 = System.nanoTime();
+      read(snap);
+      long t2 = System.nanoTime();
+      try(ObjectOutputStream out = new ObjectOutputStream(Files.newOutputStream(ser))) {
+        out.writeObject(args);
+        out.writeObject(new HashMap<>(mud.changedThings()));
+      }
+      long t3 = System.nanoTime();
+      try(ObjectInputStream in = new ObjectInputStream(Files.newInputStream(ser))) {
+        String[] files = (String[]) in.readObject();
+        MUD loaded = new MUD(files[0], files[1], files[2]);
+        @SuppressWarnings("unchecked")
+        Map<String,List<String>> rooms = (Map<String,List<String>>) in.readObject();
+        for(Map.Entry<String,List<String>> room : rooms.entrySet())
+          loaded.setThings(room.getKey(), room.getValue());
+      }
+      long t4 = System.nanoTime();
+      if(i >= rounds / 2) { // Leave the first half for warming up.
+        snapSave += t1 - t0;
+        snapLoad += t2 - t1;
+        serSave += t3 - t2;
+        serLoad += t4 - t3;
+      }
+    }
+    int timed = rounds - rounds / 2;
+    System.out.println(state.size() + " changed locations, " + timed + " timed rounds");
+    System.out.printf("snapshot:      %8d bytes, save %6.2f ms, load %6.2f ms%n",
+                      Files.size(snap), snapSave / 1e6 / timed, snapLoad / 1e6 / timed);
+    System.out.printf("serialization: %8d bytes, save %6.2f ms, load %6.2f ms%n",
+                      Files.size(ser), serSave / 1e6 / timed, serLoad / 1e6 / timed);
+    Files.delete(snap);
+    Files.delete(ser);
+  }
+
+  private static void intern(String s, Map<String,Integer> ids, List<String> strings)
+  {
+    if(ids.putIfAbsent(s, strings.size()) == null)
+      strings.add(s);
+  }
+
+  private static void writeVarint(DataOutputStream out, int n)
+  throws IOException
+  {
+    while((n & ~0x7f) != 0) {
+      out.writeByte((n & 0x7f) | 0x80);
+      n >>>= 7;
+    }
+    out.writeByte(n);
+  }
+
+  private static int readVarint(ByteBuffer in)
+  throws IOException
+  {
+    int n = 0;
+    for(int shift = 0; shift < 32; shift += 7) {
+      byte b = in.get();
+      n |= (b & 0x7f) << shift;
+      if(b >= 0)
+        return n;
+    }
+    throw new IOException("Snapshot is corrupt");
+  }
+
+  private static void writeString(DataOutputStream out, String s)
+  throws IOException
+  {
+    byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+    writeVarint(out, utf8.length);
+    out.write(utf8);
+  }
+
+  private static String readString(ByteBuffer in)
+  throws IOException
+  {
+    byte[] utf8 = new byte[readVarint(in)];
+    in.get(utf8);
+    return new String(utf8, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,160 @@
+package src;
+
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.Vector;
+
+/* The server's stand-in for a client connected through the SocketServer
+   rather than RMI. The game logic uses it like any other PlayerInterface;
+   each call is sent to the client as a frame on its connection (see
+   Protocol). Calls that return nothing don't wait for the client, while
+   the rest wait for its reply. */
+class SocketPlayer implements PlayerInterface
+{
+  private final SocketServer.Connection connection;
+  private final Protocol.PendingCalls calls = new Protocol.PendingCalls();
+
+  public SocketPlayer(SocketServer.Connection _connection)
+  {
+    connection = _connection;
+  }
+
+  /* Called by the connection when the client replies to a call. */
+  public void reply(Protocol.FrameReader reply)
+  {
+    calls.complete(reply);
+  }
+
+  /* Called by the connection when it closes. */
+  public void closed()
+  {
+    calls.close("Connection to client closed");
+  }
+
+  public Vector<String> inventory()
+  throws RemoteException
+  {
+    return call(Protocol.INVENTORY).getStrings();
+  }
+
+  public String username()
+  throws RemoteException
+  {
+    return call(Protocol.USERNAME).getString();
+  }
+
+  public void addInventory(String item)
+  throws RemoteException
+  {
+    send(Protocol.FrameWriter.call(0, Protocol.ADD_INVENTORY).putString(item));
+  }
+
+  public void removeInventory(String item)
+  throws RemoteException
+  {
+    send(Protocol.FrameWriter.call(0, Protocol.REMOVE_INVENTORY).putString(item));
+  }
+
+  public void clearInventory()
+  throws RemoteException
+  {
+    send(Protocol.FrameWriter.call(0, Protocol.CLEAR_INVENTORY));
+  }
+
+  public String curLocation()
+  throws RemoteException
+  {
+    return call(Protocol.CUR_LOCATION).getString();
+  }
+
+  public PlayerState status()
+  throws RemoteException
+  {
+    return call(Protocol.STATUS).getEnum(PlayerState.values());
+  }
+
+  public void setStatus(PlayerState _status)
+  throws RemoteException
+  {
+    send(Protocol.FrameWriter.call(0, Protocol.SET_STATUS).putByte(_status.ordinal()));
+  }
+
+  public void setLocation(String loc)
+  throws RemoteException
+  {
+    send(Protocol.FrameWriter.call(0, Protocol.SET_LOCATION).putString(loc));
+  }
+
+  public void printOut(String msg)
+  throws RemoteException
+  {
+    send(Protocol.FrameWriter.call(0, Protocol.PRINT_OUT).putString(msg));
+  }
+
+  public void printOut(String msg, boolean newLine)
+  throws RemoteException
+  {
+    send(Protocol.FrameWriter.call(0, Protocol.PRINT_INLINE).putString(msg).putBoolean(newLine));
+  }
+
+  public void clearOutput()
+  throws RemoteException
+  {
+    send(Protocol.FrameWriter.call(0, Protocol.CLEAR_OUTPUT));
+  }
+
+  public void printMessages()
+  throws RemoteException
+  {
+    send(Protocol.FrameWriter.call(0, Protocol.PRINT_MESSAGES));
+  }
+
+  public void showView(String view, PlayerMessage[] messages, boolean prompt)
+  throws RemoteException
+  {
+    send(Protocol.FrameWriter.call(0, Protocol.SHOW_VIEW).putString(view).putMessages(messages).putBoolean(prompt));
+  }
+
+  public void showRoom(RoomView room, PlayerMessage[] messages, boolean prompt)
+  throws RemoteException
+  {
+    send(Protocol.FrameWriter.call(0, Protocol.SHOW_ROOM).putRoom(room).putMessages(messages).putBoolean(prompt));
+  }
+
+  public void updateRoom(RoomView.Change[] changes, PlayerMessage[] messages, boolean prompt)
+  throws RemoteException
+  {
+    send(Protocol.FrameWriter.call(0, Protocol.UPDATE_ROOM).putChanges(changes).putMessages(messages).putBoolean(prompt));
+  }
+
+  public String promptMUD(int mudCount, int maxMUDCount)
+  throws RemoteException
+  {
+    int id = calls.start();
+    send(Protocol.FrameWriter.call(id, Protocol.PROMPT_MUD).putInt(mudCount).putInt(maxMUDCount));
+    return calls.await(id).getString();
+  }
+
+  public int promptConfig(String[] mudTypes)
+  throws RemoteException
+  {
+    int id = calls.start();
+    send(Protocol.FrameWriter.call(id, Protocol.PROMPT_CONFIG).putStrings(Arrays.asList(mudTypes)));
+    return calls.await(id).getInt();
+  }
+
+  /* Makes a call with no arguments, and waits for the reply. */
+  private Protocol.FrameReader call(byte op)
+  throws RemoteException
+  {
+    int id = calls.start();
+    send(Protocol.FrameWriter.call(id, op));
+    return calls.await(id);
+  }
+
+  private void send(Protocol.FrameWriter frame)
+  throws RemoteException
+  {
+    connection.send(frame.frame());
+  }
+}
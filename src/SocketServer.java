@@ -0,0 +1,293 @@
+package src;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/* Lets clients play over a plain socket, speaking the binary Protocol,
+   instead of through RMI. The game logic is the same MUDServer either
+   way: each connection gets a SocketPlayer, which the server treats like
+   any other client's callback stub.
+
+   All the connections are handled by one thread, using a selector, so
+   an idle client costs no thread at all. It only reads and writes
+   frames; the calls themselves (which may wait on the client, e.g. to
+   choose a MUD) are run on a pool of worker threads.
+
+   Frames for a client that isn't reading them pile up in its connection.
+   Once more than half of MAX_QUEUED bytes are waiting, nothing more is
+   read from it until it catches up; past MAX_QUEUED, it is closed. */
+class SocketServer
+{
+  public static final int MAX_QUEUED = Integer.getInteger("mud.maxSocketQueue", 1 << 20); // Bytes waiting to go to one client.
+
+  private final MUDServer server;
+  private final ServerSocketChannel listener;
+  private final Selector selector;
+  private final ConcurrentLinkedQueue<Connection> writable = new ConcurrentLinkedQueue<>(); // Have frames waiting to go out.
+  private final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+    Thread t = new Thread(r, "mud-socket-calls");
+    t.setDaemon(true);
+    return t;
+  });
+
+  /* One client's connection. */
+  class Connection
+  {
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final SocketPlayer player = new SocketPlayer(this);
+    private ByteBuffer in = ByteBuffer.allocate(1024); // Only used by the selector thread.
+    private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>(); // Guarded by out.
+    private long queued = 0; // Guarded by out. Bytes in out.
+    private volatile boolean open = true;
+    private volatile boolean closing = false; // Too far behind; to be closed by the selector thread.
+
+    private Connection(SocketChannel _channel)
+    throws IOException
+    {
+      channel = _channel;
+      channel.configureBlocking(false);
+      key = channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    /* Queues a frame to be written by the selector thread. Never blocks,
+       but closes the connection if too much is waiting already. */
+    public void send(ByteBuffer frame)
+    throws RemoteException
+    {
+      if(!open || closing)
+        throw new RemoteException("Connection to client closed");
+      boolean first = false;
+      boolean full = false;
+      synchronized(out) {
+        if(queued + frame.remaining() > MAX_QUEUED) {
+          full = true;
+        }
+        else {
+          first = out.isEmpty();
+          out.add(frame);
+          queued += frame.remaining();
+        }
+      }
+      if(full) {
+        System.err.println(ColourPrinter.red("Socket client has fallen " + MAX_QUEUED + " bytes behind; closing."));
+        closing = true;
+      }
+      if(first || full) {
+        writable.add(this);
+        selector.wakeup();
+      }
+      if(full)
+        throw new RemoteException("Client isn't reading");
+    }
+
+    /* Reads whatever has arrived, and handles each whole frame in it. */
+    private void read()
+    throws IOException
+    {
+      if(channel.read(in) < 0) {
+        close();
+        return;
+      }
+      in.flip();
+      while(in.remaining() >= 4) {
+        int length = in.getInt(in.position());
+        if(length < 0 || length > Protocol.MAX_FRAME)
+          throw new IOException("Bad frame length " + length);
+        if(in.remaining() < 4 + length)
+          break;
+        ByteBuffer frame = ByteBuffer.allocate(length);
+        in.position(in.position() + 4);
+        in.get(frame.array());
+        handle(new Protocol.FrameReader(frame));
+      }
+      in.compact();
+      if(!in.hasRemaining()) { // A frame bigger than the buffer.
+        ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+        in.flip();
+        in = bigger.put(in);
+      }
+    }
+
+    /* Writes as much of the queued output as the socket will take. */
+    private void write()
+    throws IOException
+    {
+      synchronized(out) {
+        while(!out.isEmpty()) {
+          ByteBuffer next = out.peek();
+          queued -= channel.write(next);
+          if(next.hasRemaining()) { // Socket is full; carry on when it's writable again.
+            key.interestOps(interest());
+            return;
+          }
+          out.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+      }
+    }
+
+    /* The operations to wait for while there is output queued: reading
+       too, unless the client is too far behind. */
+    private int interest()
+    {
+      synchronized(out) {
+        return (queued > MAX_QUEUED / 2) ? SelectionKey.OP_WRITE : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+      }
+    }
+
+    private void handle(Protocol.FrameReader frame)
+    {
+      if(frame.kind != Protocol.CALL) {
+        player.reply(frame);
+        return;
+      }
+      workers.execute(() -> {
+        Protocol.FrameWriter reply = new Protocol.FrameWriter(Protocol.REPLY, frame.id);
+        try {
+          switch(frame.op) {
+            case Protocol.JOIN_SERVER:
+              reply.putBoolean(server.joinServer(player));
+              break;
+            case Protocol.JOIN_MUD:
+              reply.putBoolean(server.joinMUD(frame.getInt(), player));
+              break;
+            case Protocol.MAKE_MOVE:
+              server.makeMove(player, frame.getString());
+              break;
+            case Protocol.DISCONNECT:
+              server.playerDisconnect(player);
+              break;
+            default:
+              throw new RemoteException("Unknown call " + frame.op);
+          }
+        }
+        catch(RemoteException | RuntimeException e) {
+          reply = new Protocol.FrameWriter(Protocol.FAILURE, frame.id).putString(e.toString());
+        }
+        try {
+          if(frame.id != 0)
+            send(reply.frame());
+        }
+        catch(RemoteException e) {
+          // Closed in the meantime; the disconnect is handled by close().
+        }
+      });
+    }
+
+    /* Closes the connection, and takes the player off the server as if
+       they had quit. */
+    private void close()
+    {
+      if(!open)
+        return;
+      open = false;
+      key.cancel();
+      try {
+        channel.close();
+      }
+      catch(IOException e) {
+        // Closing anyway.
+      }
+      player.closed();
+      workers.execute(() -> {
+        try {
+          server.playerDisconnect(player);
+        }
+        catch(RemoteException e) {
+          System.err.println(ColourPrinter.red("RemoteException in SocketServer.close():"));
+          System.err.println(ColourPrinter.red(e.getMessage()));
+        }
+      });
+    }
+  }
+
+  public SocketServer(MUDServer _server, int port)
+  throws IOException
+  {
+    server = _server;
+    selector = Selector.open();
+    listener = ServerSocketChannel.open();
+    listener.bind(new InetSocketAddress(port));
+    listener.configureBlocking(false);
+    listener.register(selector, SelectionKey.OP_ACCEPT);
+  }
+
+  /* The port the server is listening on (useful if it was started on port 0). */
+  public int port()
+  {
+    return listener.socket().getLocalPort();
+  }
+
+  /* Starts accepting clients, on a thread of its own. */
+  public void start()
+  {
+    Thread t = new Thread(this::run, "mud-socket");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  private void run()
+  {
+    while(selector.isOpen()) {
+      try {
+        selector.select();
+        for(Connection c; (c = writable.poll()) != null; ) {
+          if(c.closing)
+            c.close();
+          else if(c.open && c.key.isValid())
+            c.key.interestOps(c.interest());
+        }
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while(keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if(key.isAcceptable())
+            accept();
+          else
+            ready(key);
+        }
+      }
+      catch(IOException e) {
+        System.err.println(ColourPrinter.red("IOException in SocketServer:"));
+        System.err.println(ColourPrinter.red(e.getMessage()));
+      }
+    }
+  }
+
+  private void accept()
+  throws IOException
+  {
+    SocketChannel channel = listener.accept();
+    if(channel != null) {
+      channel.socket().setTcpNoDelay(true);
+      new Connection(channel);
+    }
+  }
+
+  /* Reads from or writes to a connection, closing it if that fails. */
+  private void ready(SelectionKey key)
+  {
+    Connection c = (Connection) key.attachment();
+    try {
+      if(key.isValid() && key.isReadable())
+        c.read();
+      if(key.isValid() && key.isWritable())
+        c.write();
+    }
+    catch(IOException e) {
+      c.close();
+    }
+  }
+}
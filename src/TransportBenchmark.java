@@ -0,0 +1,149 @@
+package src;
+
+import java.nio.file.Files;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Function;
+
+/* Benchmark: compares how many commands per second the server handles
+   through RMI and through the SocketServer. Starts a server in this
+   process, connects some headless players through each transport in
+   turn (all over the loopback interface), and has each of them send
+   "look" commands as fast as they can.
+   Usage: java src.TransportBenchmark [players] [commands per player] */
+public class TransportBenchmark
+{
+  /* A player that ignores everything the server sends, and always
+     chooses the first MUD. */
+  static class QuietPlayer implements PlayerInterface
+  {
+    private final String name;
+    private final Vector<String> inventory = new Vector<>();
+
+    QuietPlayer(String _name)
+    {
+      name = _name;
+      inventory.add("map");
+    }
+
+    public Vector<String> inventory() { return inventory; }
+    public String username() { return name; }
+    public void addInventory(String item) {}
+    public void removeInventory(String item) {}
+    public void clearInventory() {}
+    public String curLocation() { return null; }
+    public PlayerState status() { return PlayerState.NONE; }
+    public void setStatus(PlayerState _status) {}
+    public void setLocation(String loc) {}
+    public void printOut(String msg) {}
+    public void printOut(String msg, boolean newLine) {}
+    public void clearOutput() {}
+    public void printMessages() {}
+    public void showView(String view, PlayerMessage[] messages, boolean prompt) {}
+    public void showRoom(RoomView room, PlayerMessage[] messages, boolean prompt) {}
+    public void updateRoom(RoomView.Change[] changes, PlayerMessage[] messages, boolean prompt) {}
+    public String promptMUD(int mudCount, int maxMUDCount) { return "0"; }
+    public int promptConfig(String[] mudTypes) { return 0; }
+  }
+
+  /* One player's connection: the server to call, and what to pass it. */
+  private interface Link
+  {
+    MUDServerInterface server();
+    PlayerInterface player();
+  }
+
+  public static void main(String[] args)
+  throws Exception
+  {
+    int players = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+    int commands = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+    // Keep the benchmark's saves away from a real server's.
+    System.setProperty("mud.saveDir", Files.createTempDirectory("mud-benchmark").toString());
+    // Room for everyone in one MUD, so that all the commands do the same work.
+    System.setProperty("mud.maxServerPlayers", String.valueOf(2 * players));
+    System.setProperty("mud.maxMUDPlayers", String.valueOf(2 * players));
+
+    String[] edges = {"mud_configs/mud_1/mymud.edg"};
+    String[] messages = {"mud_configs/mud_1/mymud.msg"};
+    String[] things = {"mud_configs/mud_1/mymud.thg"};
+    MUDServer server = new MUDServer(0, edges, messages, things, new String[] {"Benchmark"});
+
+    MUDServerInterface stub = (MUDServerInterface) UnicastRemoteObject.exportObject(server, 0);
+    double rmi = run("rmi", players, commands, name -> {
+      try {
+        QuietPlayer p = new QuietPlayer(name);
+        PlayerInterface pstub = (PlayerInterface) UnicastRemoteObject.exportObject(p, 0);
+        return link(stub, pstub);
+      }
+      catch(RemoteException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+
+    SocketServer sockets = new SocketServer(server, 0);
+    sockets.start();
+    double socket = run("socket", players, commands, name -> {
+      try {
+        return link(new ServerConnection("localhost", sockets.port(), new QuietPlayer(name)), null);
+      }
+      catch(Exception e) {
+        throw new IllegalStateException(e);
+      }
+    });
+
+    System.out.printf("%d players x %d commands%n", players, commands);
+    System.out.printf("rmi:    %9.0f commands/s%n", rmi);
+    System.out.printf("socket: %9.0f commands/s%n", socket);
+    System.exit(0);
+  }
+
+  private static Link link(MUDServerInterface server, PlayerInterface player)
+  {
+    return new Link() {
+      public MUDServerInterface server() { return server; }
+      public PlayerInterface player() { return player; }
+    };
+  }
+
+  /* Joins the players through one transport, and times their commands.
+     Returns the commands handled per second. */
+  private static double run(String name, int players, int commands, Function<String, Link> connect)
+  throws Exception
+  {
+    List<Link> links = new ArrayList<>();
+    for(int i = 0; i < players; i++) {
+      Link link = connect.apply(name + i);
+      if(!link.server().joinServer(link.player()))
+        throw new IllegalStateException(name + i + " couldn't join");
+      links.add(link);
+    }
+    for(Link link : links) // Warm up.
+      for(int i = 0; i < commands / 10; i++)
+        link.server().makeMove(link.player(), "look");
+
+    CountDownLatch done = new CountDownLatch(players);
+    long start = System.nanoTime();
+    for(Link link : links) {
+      new Thread(() -> {
+        try {
+          for(int i = 0; i < commands; i++)
+            link.server().makeMove(link.player(), "look");
+        }
+        catch(RemoteException e) {
+          System.err.println(ColourPrinter.red(e.getMessage()));
+        }
+        done.countDown();
+      }).start();
+    }
+    done.await();
+    long elapsed = System.nanoTime() - start;
+    for(Link link : links)
+      link.server().playerDisconnect(link.player());
+    return players * (double) commands / (elapsed / 1e9);
+  }
+}
@@ -0,0 +1,353 @@
+package src;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/* Records every change to the things in a MUD, and to the inventories of
+   the players in it, so that changes made since its last snapshot can be
+   replayed after a crash (see Saver.loadState()). Changes that belong
+   together (e.g. an item leaving a room and going into an inventory) can
+   be recorded as a group, which is always written in one batch.
+
+   Changes are added to a buffer in memory, which is cheap enough to do
+   while running a command. A background thread writes out everything
+   buffered since its last write as one batch, and forces it to disk,
+   every FLUSH_INTERVAL milliseconds (group commit). A crash can therefore
+   lose at most the last FLUSH_INTERVAL of changes.
+
+   Each snapshot starts a new log file (see rotate()), numbered by its
+   generation, and the snapshot records the generation it covers. Files
+   up to that generation are then deleted, and only later ones are
+   replayed when the MUD is loaded. Moving on to a new file only swaps
+   buffers; the old file is finished off by the next flush().
+
+   File format: a sequence of batches, each one being
+     int      length of the records
+     int      CRC32 of the records
+     records  each an op byte, then
+                ADD, DEL   the location and the thing
+                INVENTORY  the player, their inventory's version (a long),
+                           the number of items (unsigned short) and the items
+              with strings as (unsigned short) UTF-8 length and bytes
+   A batch that was only partly written before a crash is ignored.
+   Inventory records hold the whole inventory, so only the newest one for
+   each player matters, and only if it is newer than their saved profile. */
+class WriteAheadLog
+{
+  public static final int FLUSH_INTERVAL = Integer.getInteger("mud.walFlushMillis", 50);
+
+  private static final byte ADD = 1;
+  private static final byte DEL = 2;
+  private static final byte INVENTORY = 3;
+
+  private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread t = new Thread(r, "mud-wal");
+    t.setDaemon(true);
+    return t;
+  });
+
+  private final Path dir;
+  private final String name;   // e.g. "mud_0"; files are named name.generation.wal
+  private long generation;     // Guarded by buffer. The file that buffered changes belong to.
+  private final Map<Long, byte[]> finishing = new LinkedHashMap<>(); // Guarded by buffer. Changes for earlier files, not yet written.
+  private FileChannel channel; // Guarded by this. Only opened once there is something to write...
+  private long channelGeneration; // ...to this file.
+  private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(); // Guarded by buffer.
+  private final DataOutputStream records = new DataOutputStream(buffer);
+  private final ScheduledFuture<?> flushing;
+
+  /* Starts a log, writing to the file with the given generation. */
+  public WriteAheadLog(Path _dir, String _name, long _generation)
+  throws IOException
+  {
+    dir = _dir;
+    name = _name;
+    generation = _generation;
+    Files.createDirectories(dir);
+    flushing = FLUSHER.scheduleWithFixedDelay(this::flushQuietly, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+  }
+
+  /* Records a thing being added to a location. */
+  public void addThing(String loc, String thing)
+  {
+    append(ADD, loc, thing);
+  }
+
+  /* Records a thing being removed from a location. */
+  public void delThing(String loc, String thing)
+  {
+    append(DEL, loc, thing);
+  }
+
+  /* Records a player's whole inventory, after a change to it. */
+  public void inventory(String player, long version, List<String> items)
+  {
+    synchronized(buffer) {
+      try {
+        records.writeByte(INVENTORY);
+        writeString(player);
+        records.writeLong(version);
+        records.writeShort(items.size());
+        for(String item : items)
+          writeString(item);
+      }
+      catch(IOException e) { // Can't happen when writing to memory.
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  /* Makes some changes, and records them in the same batch, so that after
+     a crash either all of them are replayed or none are. */
+  public void group(Runnable changes)
+  {
+    synchronized(buffer) {
+      changes.run();
+    }
+  }
+
+  /* Moves on to a new file, and returns the generation of the old one.
+     Changes still buffered for the old file are written by the next
+     flush(). Must be called from the MUD's command queue, along with
+     taking the snapshot, so that no change is recorded in the old file
+     but missed by the snapshot. Doesn't touch the disk, so it is quick. */
+  public long rotate()
+  {
+    synchronized(buffer) {
+      if(buffer.size() > 0) {
+        finishing.put(generation, buffer.toByteArray());
+        buffer.reset();
+      }
+      return generation++;
+    }
+  }
+
+  /* Deletes the files for the given generation and any before it, once
+     a snapshot covering them has been saved. */
+  public void deleteUpTo(long covered)
+  throws IOException
+  {
+    for(Path file : files(dir, name)) {
+      if(generationOf(file, name) <= covered)
+        Files.deleteIfExists(file);
+    }
+  }
+
+  /* Writes out anything buffered as one batch (per file), and forces it
+     to disk. Returns the number of bytes written. */
+  public synchronized long flush()
+  throws IOException
+  {
+    Map<Long, byte[]> batches = new LinkedHashMap<>();
+    synchronized(buffer) {
+      batches.putAll(finishing);
+      finishing.clear();
+      if(buffer.size() > 0) {
+        batches.put(generation, buffer.toByteArray());
+        buffer.reset();
+      }
+    }
+    long written = 0;
+    for(Map.Entry<Long, byte[]> batch : batches.entrySet())
+      written += write(batch.getKey(), batch.getValue());
+    return written;
+  }
+
+  /* Writes out anything buffered, and stops writing to the log. */
+  public synchronized void close()
+  throws IOException
+  {
+    flushing.cancel(false);
+    flush();
+    if(channel != null) {
+      channel.close();
+      channel = null; // Reopened if anything is written after all.
+    }
+  }
+
+  /* Replays the changes in every log file after the given generation
+     onto a MUD, oldest first, and the inventories recorded in them into
+     the PlayerStore. Returns the last generation found (or the one given,
+     if there were none). */
+  public static long replay(Path dir, String name, long after, MUD mud, PlayerStore players)
+  throws IOException
+  {
+    long last = after;
+    int changes = 0;
+    for(Path file : files(dir, name)) {
+      long gen = generationOf(file, name);
+      if(gen <= after)
+        continue;
+      changes += replay(file, mud, players);
+      last = gen;
+    }
+    if(changes > 0)
+      System.out.println("Replayed " + changes + " changes from the log for " + name);
+    return last;
+  }
+
+  private static int replay(Path file, MUD mud, PlayerStore players)
+  throws IOException
+  {
+    ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file));
+    int changes = 0;
+    while(in.remaining() >= 8) {
+      int length = in.getInt();
+      int checksum = in.getInt();
+      if(length < 0 || length > in.remaining())
+        break; // Only partly written.
+      CRC32 crc = new CRC32();
+      ByteBuffer batch = in.slice();
+      batch.limit(length);
+      crc.update(batch.duplicate());
+      if((int) crc.getValue() != checksum)
+        break;
+      in.position(in.position() + length);
+      try {
+        while(batch.hasRemaining()) {
+          byte op = batch.get();
+          if(op == INVENTORY) {
+            String player = readString(batch);
+            long version = batch.getLong();
+            List<String> items = new ArrayList<>();
+            for(int n = batch.getShort() & 0xffff; n > 0; n--)
+              items.add(readString(batch));
+            if(players.recover(player, items, version))
+              changes++;
+            continue;
+          }
+          String loc = readString(batch);
+          String thing = readString(batch);
+          if(!mud.hasLocation(loc))
+            continue; // No longer in the MUD.
+          if(op == ADD)
+            mud.addThing(loc, thing);
+          else if(op == DEL)
+            mud.delThing(loc, thing);
+          changes++;
+        }
+      }
+      catch(BufferUnderflowException e) { // Checksum matched, but the batch is still malformed.
+        System.err.println(ColourPrinter.red("Skipping bad log entry in " + file));
+      }
+    }
+    if(in.hasRemaining())
+      System.err.println(ColourPrinter.red("Ignoring " + in.remaining() + " bytes at the end of " + file));
+    return changes;
+  }
+
+  private void append(byte op, String loc, String thing)
+  {
+    synchronized(buffer) {
+      try {
+        records.writeByte(op);
+        writeString(loc);
+        writeString(thing);
+      }
+      catch(IOException e) { // Can't happen when writing to memory.
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  private void writeString(String s)
+  throws IOException
+  {
+    byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+    records.writeShort(utf8.length);
+    records.write(utf8);
+  }
+
+  private static String readString(ByteBuffer in)
+  {
+    byte[] utf8 = new byte[in.getShort() & 0xffff];
+    in.get(utf8);
+    return new String(utf8, StandardCharsets.UTF_8);
+  }
+
+  /* Writes a batch to the file for the given generation. */
+  private long write(long gen, byte[] batch)
+  throws IOException
+  {
+    if(channel == null || channelGeneration != gen) {
+      if(channel != null)
+        channel.close();
+      channel = open(gen);
+      channelGeneration = gen;
+    }
+    CRC32 crc = new CRC32();
+    crc.update(batch);
+    ByteBuffer out = ByteBuffer.allocate(8 + batch.length);
+    out.putInt(batch.length).putInt((int) crc.getValue()).put(batch).flip();
+    while(out.hasRemaining())
+      channel.write(out);
+    channel.force(false);
+    return 8 + batch.length;
+  }
+
+  private FileChannel open(long gen)
+  throws IOException
+  {
+    return FileChannel.open(dir.resolve(name + "." + gen + ".wal"),
+                            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+  }
+
+  private void flushQuietly()
+  {
+    try {
+      flush();
+    }
+    catch(IOException e) {
+      System.err.println(ColourPrinter.red("IOException in WriteAheadLog.flush():"));
+      System.err.println(ColourPrinter.red(e.getMessage()));
+    }
+  }
+
+  /* The log files for a MUD, oldest first. */
+  private static List<Path> files(Path dir, String name)
+  throws IOException
+  {
+    List<Path> files = new ArrayList<>();
+    if(!Files.isDirectory(dir))
+      return files;
+    try(DirectoryStream<Path> found = Files.newDirectoryStream(dir, name + ".*.wal")) {
+      for(Path file : found) {
+        if(generationOf(file, name) >= 0)
+          files.add(file);
+      }
+    }
+    Collections.sort(files, (a, b) -> Long.compare(generationOf(a, name), generationOf(b, name)));
+    return files;
+  }
+
+  /* The generation in a log file's name, or -1 if it isn't one. */
+  private static long generationOf(Path file, String name)
+  {
+    String f = file.getFileName().toString();
+    try {
+      return Long.parseLong(f.substring(name.length() + 1, f.length() - 4));
+    }
+    catch(NumberFormatException | IndexOutOfBoundsException e) {
+      return -1;
+    }
+  }
+}